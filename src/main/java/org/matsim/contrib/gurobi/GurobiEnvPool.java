@@ -0,0 +1,151 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gurobi;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+import gurobi.GRBEnv;
+import gurobi.GRBException;
+
+/**
+ * Small pool of long-lived Gurobi environments. Creating a {@link GRBEnv} means license checkout, log setup and
+ * native initialisation, so solvers borrow an environment (configured with a {@link GurobiProfile}) instead:
+ *
+ * <pre>
+ * try (GurobiEnvPool.Lease lease = GurobiEnvPool.shared().borrow(GurobiProfile.ONLINE)) {
+ * 	GRBModel model = new GRBModel(lease.env);
+ * 	...
+ * 	model.dispose();
+ * }
+ * </pre>
+ *
+ * At most {@code size} environments exist at a time; {@link #borrow(GurobiProfile)} blocks if all are leased. Each
+ * environment may hold a license token, so the shared pool is small (SHARED_SIZE, system property
+ * "gurobi.envPoolSize"); parallel solves (e.g. zones) wait for a free environment. Note that the persistent taxi
+ * model and background polishing keep their leases for longer.
+ *
+ * @author michalm
+ */
+public class GurobiEnvPool {
+	public static final int SHARED_SIZE = Integer.getInteger("gurobi.envPoolSize", 2);
+	private static final GurobiEnvPool SHARED = new GurobiEnvPool(SHARED_SIZE);
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(SHARED::dispose));
+	}
+
+	public static GurobiEnvPool shared() {
+		return SHARED;
+	}
+
+	public class Lease implements AutoCloseable {
+		public final GRBEnv env;
+		private boolean closed = false;
+
+		private Lease(GRBEnv env) {
+			this.env = env;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				giveBack(env);
+			}
+		}
+	}
+
+	private final Semaphore permits;
+	private final Deque<GRBEnv> idleEnvs = new ArrayDeque<>();
+	private int createdEnvs = 0;
+	private int leases = 0;
+	private boolean disposed = false;
+
+	public GurobiEnvPool(int size) {
+		permits = new Semaphore(size, true);
+	}
+
+	public Lease borrow(GurobiProfile profile) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		try {
+			GRBEnv env = takeIdleOrCreate();
+			env.resetParams();// the previous borrower might have used another profile
+			profile.apply(env);
+			return new Lease(env);
+		} catch (GRBException e) {
+			permits.release();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public synchronized int getCreatedEnvCount() {
+		return createdEnvs;
+	}
+
+	public synchronized int getLeaseCount() {
+		return leases;
+	}
+
+	/**
+	 * Disposes the idle environments (leased ones are disposed when given back).
+	 */
+	public synchronized void dispose() {
+		disposed = true;
+		for (GRBEnv env : idleEnvs) {
+			disposeQuietly(env);
+		}
+		idleEnvs.clear();
+	}
+
+	private synchronized GRBEnv takeIdleOrCreate() throws GRBException {
+		leases++;
+		GRBEnv env = idleEnvs.pollFirst();
+		if (env == null) {
+			env = new GRBEnv();
+			createdEnvs++;
+		}
+		return env;
+	}
+
+	private synchronized void giveBack(GRBEnv env) {
+		if (disposed) {
+			disposeQuietly(env);
+		} else {
+			idleEnvs.addFirst(env);
+		}
+		permits.release();
+	}
+
+	private static void disposeQuietly(GRBEnv env) {
+		try {
+			env.dispose();
+		} catch (GRBException e) {
+			// shutting down anyway
+		}
+	}
+}
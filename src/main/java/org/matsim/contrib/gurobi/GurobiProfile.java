@@ -0,0 +1,57 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gurobi;
+
+import gurobi.GRB;
+import gurobi.GRBEnv;
+import gurobi.GRBException;
+
+/**
+ * Named sets of Gurobi parameters applied to the environments handed out by {@link GurobiEnvPool}.
+ *
+ * @author michalm
+ */
+public enum GurobiProfile {
+	ONLINE(60, Double.NaN, 0, false), // taxi dispatching (within simulation)
+	ONLINE_ZONE(60, Double.NaN, 1, false), // taxi dispatching (one of the zones solved in parallel)
+	OFFLINE(7200, Double.NaN, 0, true), // taxi dispatching (whole day at once)
+	CHARGER_SWEEP(GRB.INFINITY, 0.01, 0, true);// charger location (series of runs)
+
+	public final double timeLimit;// [s]
+	public final double mipGap;// NaN: Gurobi default
+	public final int threads;// 0: Gurobi default (all cores)
+	public final boolean output;
+
+	private GurobiProfile(double timeLimit, double mipGap, int threads, boolean output) {
+		this.timeLimit = timeLimit;
+		this.mipGap = mipGap;
+		this.threads = threads;
+		this.output = output;
+	}
+
+	void apply(GRBEnv env) throws GRBException {
+		env.set(GRB.DoubleParam.TimeLimit, timeLimit);
+		if (!Double.isNaN(mipGap)) {
+			env.set(GRB.DoubleParam.MIPGap, mipGap);
+		}
+		env.set(GRB.IntParam.Threads, threads);
+		env.set(GRB.IntParam.OutputFlag, output ? 1 : 0);
+	}
+}
@@ -0,0 +1,466 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.contrib.taxi.optimizer.mip.PathTreeNetwork.NodeHeap;
+
+/**
+ * Contraction hierarchy over {@link PathTreeNetwork} with static link times. Nodes are contracted one by one
+ * (lazily updated edge-difference order), adding shortcuts where no witness path exists. Queries search only
+ * upwards (towards higher ranks): point-to-point queries meet in the middle (forward search from the source,
+ * backward search from the target); many-to-many tables are computed with buckets, i.e. one backward search per
+ * target and one forward search per source, each settling only a small part of the network.
+ * <p>
+ * Only node ids are kept, not the network itself (so the hierarchy may be cached per network in a weak map).
+ *
+ * @author michalm
+ */
+class ContractionHierarchy {
+	private static final int WITNESS_SETTLED_LIMIT = 500;
+
+	private final Map<Id<Node>, Integer> nodeIndices;
+	private final int nodeCount;
+	private final int shortcutCount;
+
+	// upward edges (u -> v, rank[v] > rank[u]) of node u: [upFirst[u], upFirst[u + 1])
+	private final int[] upFirst;
+	private final int[] upTo;
+	private final float[] upTimes;
+
+	// downward edges (v -> u, rank[v] > rank[u]) stored at u, for backward searches: [downFirst[u], downFirst[u + 1])
+	private final int[] downFirst;
+	private final int[] downFrom;
+	private final float[] downTimes;
+
+	private final ThreadLocal<UpwardSearch> searches;
+	private final ThreadLocal<UpwardSearch> backwardSearches;// point-to-point queries only
+
+	ContractionHierarchy(PathTreeNetwork network, float[] linkTimes) {
+		nodeIndices = network.getNodeIndices();
+		nodeCount = network.getNodeCount();
+
+		DynamicGraph graph = new DynamicGraph(nodeCount);
+		int[] firstOutLink = network.getFirstOutLinks();
+		int[] linkToNode = network.getLinkToNodes();
+		for (int u = 0; u < nodeCount; u++) {
+			for (int l = firstOutLink[u]; l < firstOutLink[u + 1]; l++) {
+				graph.addEdge(u, linkToNode[l], linkTimes[l]);
+			}
+		}
+
+		int originalEdgeCount = graph.edgeCount;
+		int[] rank = new Contractor(graph).contract();
+		shortcutCount = graph.edgeCount - originalEdgeCount;
+
+		// split into the upward and downward graphs (CSR)
+		upFirst = new int[nodeCount + 1];
+		downFirst = new int[nodeCount + 1];
+		for (int u = 0; u < nodeCount; u++) {
+			for (int e = 0; e < graph.outSize[u]; e++) {
+				int v = graph.outTo[u][e];
+				if (rank[v] > rank[u]) {
+					upFirst[u + 1]++;
+				} else {
+					downFirst[v + 1]++;
+				}
+			}
+		}
+		for (int u = 0; u < nodeCount; u++) {
+			upFirst[u + 1] += upFirst[u];
+			downFirst[u + 1] += downFirst[u];
+		}
+
+		upTo = new int[upFirst[nodeCount]];
+		upTimes = new float[upTo.length];
+		downFrom = new int[downFirst[nodeCount]];
+		downTimes = new float[downFrom.length];
+		int[] upNext = Arrays.copyOf(upFirst, nodeCount);
+		int[] downNext = Arrays.copyOf(downFirst, nodeCount);
+		for (int u = 0; u < nodeCount; u++) {
+			for (int e = 0; e < graph.outSize[u]; e++) {
+				int v = graph.outTo[u][e];
+				float time = graph.outTimes[u][e];
+				if (rank[v] > rank[u]) {
+					upTo[upNext[u]] = v;
+					upTimes[upNext[u]++] = time;
+				} else {
+					downFrom[downNext[v]] = u;
+					downTimes[downNext[v]++] = time;
+				}
+			}
+		}
+
+		searches = ThreadLocal.withInitial(() -> new UpwardSearch(nodeCount));
+		backwardSearches = ThreadLocal.withInitial(() -> new UpwardSearch(nodeCount));
+	}
+
+	int getIndex(Node node) {
+		return nodeIndices.get(node.getId());
+	}
+
+	/**
+	 * @return travel time from source to target (Float.POSITIVE_INFINITY if unreachable)
+	 */
+	float calcTravelTime(int source, int target) {
+		UpwardSearch forward = searches.get();
+		UpwardSearch backward = backwardSearches.get();
+		forward.run(source, upFirst, upTo, upTimes);
+		backward.run(target, downFirst, downFrom, downTimes);
+
+		// the shortest path goes through its highest-ranked node, settled by both searches
+		float best = Float.POSITIVE_INFINITY;
+		for (int idx = 0; idx < backward.settledCount; idx++) {
+			int node = backward.settled[idx];
+			best = Math.min(best, forward.times[node] + backward.times[node]);
+		}
+		return best;
+	}
+
+	/**
+	 * @return travel times between all source and target nodes (Float.POSITIVE_INFINITY if unreachable)
+	 */
+	float[][] calcManyToMany(int[] sources, int[] targets) {
+		Buckets buckets = new Buckets(nodeCount);
+		UpwardSearch search = searches.get();
+		for (int t = 0; t < targets.length; t++) {
+			search.run(targets[t], downFirst, downFrom, downTimes);
+			for (int s = 0; s < search.settledCount; s++) {
+				int node = search.settled[s];
+				buckets.add(node, t, search.times[node]);
+			}
+		}
+
+		float[][] result = new float[sources.length][];
+		IntStream.range(0, sources.length).parallel().forEach(s -> {
+			float[] row = new float[targets.length];
+			Arrays.fill(row, Float.POSITIVE_INFINITY);
+
+			UpwardSearch forward = searches.get();
+			forward.run(sources[s], upFirst, upTo, upTimes);
+			for (int idx = 0; idx < forward.settledCount; idx++) {
+				int node = forward.settled[idx];
+				float time = forward.times[node];
+				for (int b = buckets.head[node]; b >= 0; b = buckets.next[b]) {
+					float total = time + buckets.times[b];
+					if (total < row[buckets.targets[b]]) {
+						row[buckets.targets[b]] = total;
+					}
+				}
+			}
+			result[s] = row;
+		});
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "CH: nodes=" + nodeCount + ", shortcuts=" + shortcutCount;
+	}
+
+	/**
+	 * Dijkstra over the upward (or reversed downward) graph; settles every node reachable upwards.
+	 */
+	private static class UpwardSearch {
+		private final NodeHeap heap;
+		private final float[] times;
+		private final int[] settled;
+		private int settledCount;
+
+		private UpwardSearch(int nodeCount) {
+			heap = new NodeHeap(nodeCount);
+			times = new float[nodeCount];
+			Arrays.fill(times, Float.POSITIVE_INFINITY);
+			settled = new int[nodeCount];
+		}
+
+		private void run(int origin, int[] first, int[] to, float[] edgeTimes) {
+			for (int s = 0; s < settledCount; s++) {
+				times[settled[s]] = Float.POSITIVE_INFINITY;
+			}
+			settledCount = 0;
+
+			heap.clear();
+			times[origin] = 0;
+			heap.decreaseKey(origin, 0);
+			while (!heap.isEmpty()) {
+				int u = heap.poll();
+				settled[settledCount++] = u;
+				float time_u = times[u];
+
+				for (int e = first[u]; e < first[u + 1]; e++) {
+					int v = to[e];
+					float time_v = time_u + edgeTimes[e];
+					if (time_v < times[v]) {
+						times[v] = time_v;
+						heap.decreaseKey(v, time_v);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists of (target, time) for each node reached by the backward searches.
+	 */
+	private static class Buckets {
+		private final int[] head;
+		private int[] next = new int[64];
+		private int[] targets = new int[64];
+		private float[] times = new float[64];
+		private int size = 0;
+
+		private Buckets(int nodeCount) {
+			head = new int[nodeCount];
+			Arrays.fill(head, -1);
+		}
+
+		private void add(int node, int target, float time) {
+			if (size == next.length) {
+				next = Arrays.copyOf(next, 2 * size);
+				targets = Arrays.copyOf(targets, 2 * size);
+				times = Arrays.copyOf(times, 2 * size);
+			}
+			next[size] = head[node];
+			targets[size] = target;
+			times[size] = time;
+			head[node] = size++;
+		}
+	}
+
+	/**
+	 * Adjacency lists (both directions) that can grow during contraction; parallel edges are merged (shorter
+	 * kept).
+	 */
+	private static class DynamicGraph {
+		private final int[][] outTo;
+		private final float[][] outTimes;
+		private final int[] outSize;
+		private final int[][] inFrom;
+		private final float[][] inTimes;
+		private final int[] inSize;
+		private int edgeCount = 0;
+
+		private DynamicGraph(int nodeCount) {
+			outTo = new int[nodeCount][4];
+			outTimes = new float[nodeCount][4];
+			outSize = new int[nodeCount];
+			inFrom = new int[nodeCount][4];
+			inTimes = new float[nodeCount][4];
+			inSize = new int[nodeCount];
+		}
+
+		private void addEdge(int u, int v, float time) {
+			if (u == v) {
+				return;
+			}
+
+			int e = indexOf(outTo[u], outSize[u], v);
+			if (e >= 0) {
+				if (time < outTimes[u][e]) {
+					outTimes[u][e] = time;
+					inTimes[v][indexOf(inFrom[v], inSize[v], u)] = time;
+				}
+				return;
+			}
+
+			if (outSize[u] == outTo[u].length) {
+				outTo[u] = Arrays.copyOf(outTo[u], 2 * outSize[u]);
+				outTimes[u] = Arrays.copyOf(outTimes[u], 2 * outSize[u]);
+			}
+			outTo[u][outSize[u]] = v;
+			outTimes[u][outSize[u]++] = time;
+
+			if (inSize[v] == inFrom[v].length) {
+				inFrom[v] = Arrays.copyOf(inFrom[v], 2 * inSize[v]);
+				inTimes[v] = Arrays.copyOf(inTimes[v], 2 * inSize[v]);
+			}
+			inFrom[v][inSize[v]] = u;
+			inTimes[v][inSize[v]++] = time;
+
+			edgeCount++;
+		}
+
+		private static int indexOf(int[] nodes, int size, int node) {
+			for (int e = 0; e < size; e++) {
+				if (nodes[e] == node) {
+					return e;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static class Contractor {
+		private final DynamicGraph graph;
+		private final int nodeCount;
+		private final boolean[] contracted;
+		private final int[] contractedNeighbours;
+
+		// witness search
+		private final NodeHeap witnessHeap;
+		private final float[] witnessTimes;
+		private final int[] touched;
+		private int touchedCount = 0;
+
+		private Contractor(DynamicGraph graph) {
+			this.graph = graph;
+			nodeCount = graph.outSize.length;
+			contracted = new boolean[nodeCount];
+			contractedNeighbours = new int[nodeCount];
+
+			witnessHeap = new NodeHeap(nodeCount);
+			witnessTimes = new float[nodeCount];
+			Arrays.fill(witnessTimes, Float.POSITIVE_INFINITY);
+			touched = new int[nodeCount];
+		}
+
+		/**
+		 * @return rank of each node (order of contraction)
+		 */
+		private int[] contract() {
+			NodeHeap queue = new NodeHeap(nodeCount);
+			for (int v = 0; v < nodeCount; v++) {
+				queue.decreaseKey(v, calcPriority(v));
+			}
+
+			int[] rank = new int[nodeCount];
+			int nextRank = 0;
+			while (!queue.isEmpty()) {
+				int v = queue.poll();
+
+				// lazy update: re-insert if no longer the least important node
+				float priority = calcPriority(v);
+				if (!queue.isEmpty() && priority > queue.peekKey()) {
+					queue.decreaseKey(v, priority);
+					continue;
+				}
+
+				processNode(v, true);
+				contracted[v] = true;
+				rank[v] = nextRank++;
+
+				for (int e = 0; e < graph.outSize[v]; e++) {
+					contractedNeighbours[graph.outTo[v][e]]++;
+				}
+				for (int e = 0; e < graph.inSize[v]; e++) {
+					contractedNeighbours[graph.inFrom[v][e]]++;
+				}
+			}
+			return rank;
+		}
+
+		// edge difference + contracted neighbours
+		private float calcPriority(int v) {
+			int removedEdges = 0;
+			for (int e = 0; e < graph.outSize[v]; e++) {
+				removedEdges += contracted[graph.outTo[v][e]] ? 0 : 1;
+			}
+			for (int e = 0; e < graph.inSize[v]; e++) {
+				removedEdges += contracted[graph.inFrom[v][e]] ? 0 : 1;
+			}
+			return processNode(v, false) - removedEdges + contractedNeighbours[v];
+		}
+
+		/**
+		 * @return number of shortcuts (added only if addShortcuts)
+		 */
+		private int processNode(int v, boolean addShortcuts) {
+			float maxOutTime = 0;
+			for (int e = 0; e < graph.outSize[v]; e++) {
+				if (!contracted[graph.outTo[v][e]]) {
+					maxOutTime = Math.max(maxOutTime, graph.outTimes[v][e]);
+				}
+			}
+
+			int shortcuts = 0;
+			int inSize = graph.inSize[v];// shortcuts do not change the in-edges of v
+			for (int ei = 0; ei < inSize; ei++) {
+				int u = graph.inFrom[v][ei];
+				if (contracted[u]) {
+					continue;
+				}
+
+				float time_uv = graph.inTimes[v][ei];
+				runWitnessSearch(u, v, time_uv + maxOutTime);
+
+				for (int eo = 0; eo < graph.outSize[v]; eo++) {
+					int w = graph.outTo[v][eo];
+					if (contracted[w] || w == u) {
+						continue;
+					}
+
+					float time_uvw = time_uv + graph.outTimes[v][eo];
+					if (witnessTimes[w] > time_uvw) {
+						shortcuts++;
+						if (addShortcuts) {
+							graph.addEdge(u, w, time_uvw);
+						}
+					}
+				}
+			}
+			return shortcuts;
+		}
+
+		// Dijkstra from u avoiding v (and the contracted nodes), up to maxTime
+		private void runWitnessSearch(int u, int v, float maxTime) {
+			for (int t = 0; t < touchedCount; t++) {
+				witnessTimes[touched[t]] = Float.POSITIVE_INFINITY;
+			}
+			touchedCount = 0;
+
+			witnessHeap.clear();
+			witnessTimes[u] = 0;
+			touched[touchedCount++] = u;
+			witnessHeap.decreaseKey(u, 0);
+
+			int settled = 0;
+			while (!witnessHeap.isEmpty() && settled++ < WITNESS_SETTLED_LIMIT) {
+				int x = witnessHeap.poll();
+				float time_x = witnessTimes[x];
+				if (time_x > maxTime) {
+					break;
+				}
+
+				for (int e = 0; e < graph.outSize[x]; e++) {
+					int y = graph.outTo[x][e];
+					if (y == v || contracted[y]) {
+						continue;
+					}
+
+					float time_y = time_x + graph.outTimes[x][e];
+					if (time_y < witnessTimes[y]) {
+						if (witnessTimes[y] == Float.POSITIVE_INFINITY) {
+							touched[touchedCount++] = y;
+						}
+						witnessTimes[y] = time_y;
+						witnessHeap.decreaseKey(y, time_y);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+/**
+ * Free-flow travel times computed with a {@link ContractionHierarchy}. The hierarchy is built once per network
+ * (and shared by all instances; the hierarchy does not refer to the network, so the weak map entry is cleared
+ * once the network is gone); single pairs are answered with point-to-point queries, bulk requests
+ * ({@link #calcTravelTimes(List, List)}) with a single bucket-based many-to-many query.
+ *
+ * @author michalm
+ */
+public class ContractionHierarchyTravelTimeCalculator implements PathTravelTimeCalculator {
+	private static final Map<Network, ContractionHierarchy> HIERARCHIES = Collections
+			.synchronizedMap(new WeakHashMap<>());
+
+	private final ContractionHierarchy hierarchy;
+
+	public ContractionHierarchyTravelTimeCalculator(Network network) {
+		hierarchy = HIERARCHIES.computeIfAbsent(network, n -> {
+			PathTreeNetwork treeNetwork = new PathTreeNetwork(n);
+			return new ContractionHierarchy(treeNetwork, treeNetwork.calcLinkTimes(new FreeSpeedTravelTime(), 0));
+		});
+	}
+
+	@Override
+	public void updateTime(double time) {
+		// free-flow travel times do not change
+	}
+
+	@Override
+	public int getVersion() {
+		return 0;
+	}
+
+	@Override
+	public double calcTravelTime(Link fromLink, Link toLink) {
+		if (fromLink == toLink) {
+			return 0;
+		}
+
+		float nodeToNodeTime = hierarchy.calcTravelTime(hierarchy.getIndex(fromLink.getToNode()),
+				hierarchy.getIndex(toLink.getFromNode()));
+		return PathTravelTimeCalculator.calcLinkToLinkTime(fromLink, toLink, nodeToNodeTime);
+	}
+
+	@Override
+	public double[] calcPairwiseTravelTimes(List<Link> fromLinks, List<Link> toLinks) {
+		double[] times = new double[fromLinks.size()];
+		IntStream.range(0, times.length).parallel()
+				.forEach(p -> times[p] = calcTravelTime(fromLinks.get(p), toLinks.get(p)));
+		return times;
+	}
+
+	@Override
+	public double[][] calcTravelTimes(List<Link> fromLinks, List<Link> toLinks) {
+		int[] sources = fromLinks.stream().mapToInt(l -> hierarchy.getIndex(l.getToNode())).toArray();
+		int[] targets = toLinks.stream().mapToInt(l -> hierarchy.getIndex(l.getFromNode())).toArray();
+		float[][] nodeToNodeTimes = hierarchy.calcManyToMany(sources, targets);
+
+		double[][] times = new double[fromLinks.size()][toLinks.size()];
+		for (int f = 0; f < fromLinks.size(); f++) {
+			for (int t = 0; t < toLinks.size(); t++) {
+				times[f][t] = PathTravelTimeCalculator.calcLinkToLinkTime(fromLinks.get(f), toLinks.get(t),
+						nodeToNodeTimes[f][t]);
+			}
+		}
+		return times;
+	}
+
+	@Override
+	public String toString() {
+		return hierarchy.toString();
+	}
+}
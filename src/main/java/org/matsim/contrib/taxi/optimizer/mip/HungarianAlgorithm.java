@@ -0,0 +1,107 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+
+/**
+ * Hungarian algorithm (shortest augmenting paths with potentials), O(rows^2 * cols). Assigns each row to a
+ * distinct column minimising the total cost; requires rows <= cols.
+ *
+ * @author michalm
+ */
+class HungarianAlgorithm {
+	/**
+	 * @param cost
+	 *            cost[row][col], rows <= cols
+	 * @return column assigned to each row
+	 */
+	static int[] solve(double[][] cost) {
+		int rows = cost.length;
+		int cols = rows == 0 ? 0 : cost[0].length;
+		if (rows > cols) {
+			throw new IllegalArgumentException("More rows (" + rows + ") than columns (" + cols + ")");
+		}
+
+		// 1-based; index 0 is the artificial root of each augmenting path
+		double[] rowPotential = new double[rows + 1];
+		double[] colPotential = new double[cols + 1];
+		int[] colToRow = new int[cols + 1];// 0: column free
+		int[] prevCol = new int[cols + 1];
+
+		double[] minSlack = new double[cols + 1];
+		boolean[] visited = new boolean[cols + 1];
+
+		for (int row = 1; row <= rows; row++) {
+			colToRow[0] = row;
+			int col0 = 0;
+			Arrays.fill(minSlack, Double.POSITIVE_INFINITY);
+			Arrays.fill(visited, false);
+
+			do {
+				visited[col0] = true;
+				int row0 = colToRow[col0];
+				double delta = Double.POSITIVE_INFINITY;
+				int col1 = 0;
+
+				double[] costRow = cost[row0 - 1];
+				for (int col = 1; col <= cols; col++) {
+					if (!visited[col]) {
+						double slack = costRow[col - 1] - rowPotential[row0] - colPotential[col];
+						if (slack < minSlack[col]) {
+							minSlack[col] = slack;
+							prevCol[col] = col0;
+						}
+						if (minSlack[col] < delta) {
+							delta = minSlack[col];
+							col1 = col;
+						}
+					}
+				}
+
+				for (int col = 0; col <= cols; col++) {
+					if (visited[col]) {
+						rowPotential[colToRow[col]] += delta;
+						colPotential[col] -= delta;
+					} else {
+						minSlack[col] -= delta;
+					}
+				}
+
+				col0 = col1;
+			} while (colToRow[col0] != 0);
+
+			// augment along the path
+			do {
+				int col1 = prevCol[col0];
+				colToRow[col0] = colToRow[col1];
+				col0 = col1;
+			} while (col0 != 0);
+		}
+
+		int[] rowToCol = new int[rows];
+		for (int col = 1; col <= cols; col++) {
+			if (colToRow[col] != 0) {
+				rowToCol[colToRow[col] - 1] = col - 1;
+			}
+		}
+		return rowToCol;
+	}
+}
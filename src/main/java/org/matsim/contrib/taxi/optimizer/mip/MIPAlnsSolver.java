@@ -0,0 +1,528 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+import org.matsim.contrib.taxi.run.TaxiConfigGroup;
+
+/**
+ * Adaptive large neighbourhood search over the vehicle->request chains of {@link MIPSolution}, as a pure-Java
+ * alternative to {@link MIPGurobiSolver} (or a way of improving its MIP start).
+ * <p>
+ * The objective is that of the MIP (total waiting time), with each violation of the MIP exclusion rules (see
+ * {@link MIPArcs}) or time windows penalised with W_MAX. Each thread runs an independent search (own seed) with
+ * random/worst/related removal, greedy/regret-2 insertion and simulated annealing acceptance until the wall-clock
+ * budget is used up; the best solution wins.
+ *
+ * @author michalm
+ */
+class MIPAlnsSolver {
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static final double DEFAULT_TIME_BUDGET = 0.5;// [s] if the caller has no budget
+
+	private static final int SEGMENT_LENGTH = 100;// iterations between weight updates
+	private static final double REACTION_FACTOR = 0.1;
+	private static final double SCORE_NEW_BEST = 33;
+	private static final double SCORE_BETTER = 9;
+	private static final double SCORE_ACCEPTED = 13;
+
+	private final int n;// request count
+	private final int m;// vehicle count
+
+	private final double[] e;// for each request, i
+	private final double[] l;// for each request, i
+	private final double[] totalT;// t_P + t_i + t_D, for each request, i
+	private final double[] a;// for each vehicle, k
+	private final float[][] vehToReqTimes;// t_O_ki, [k][i]
+	private final float[][] reqToReqTimes;// t_ij, [i][j]
+
+	MIPAlnsSolver(TaxiConfigGroup taxiCfg, MIPTravelTimes travelTimes, MIPRequestData rData, VehicleData vData) {
+		n = rData.dimension;
+		m = vData.getSize();
+
+		// copied into primitive arrays, so that the searches can run in parallel (MIPTravelTimes is not thread-safe)
+		double t_P = taxiCfg.getPickupDuration();
+		double t_D = taxiCfg.getDropoffDuration();
+
+		e = new double[n];
+		l = new double[n];
+		totalT = new double[n];
+		for (int i = 0; i < n; i++) {
+			e[i] = rData.requests[i].getEarliestStartTime();
+			l[i] = Math.min(e[i] + MIPGurobiSolver.TW_MAX, MIPGurobiSolver.W_MAX);
+			totalT[i] = t_P + travelTimes.getRideTime(i) + t_D;
+		}
+
+		a = new double[m];
+		vehToReqTimes = new float[m][n];
+		for (int k = 0; k < m; k++) {
+			a[k] = vData.getEntry(k).time;
+			for (int i = 0; i < n; i++) {
+				vehToReqTimes[k][i] = (float)travelTimes.getVehToReqTime(k, i);
+			}
+		}
+
+		reqToReqTimes = new float[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				reqToReqTimes[i][j] = (float)travelTimes.getReqToReqTime(i, j);
+			}
+		}
+	}
+
+	/**
+	 * @param timeBudget
+	 *            wall-clock time [s] of the search; Double.NaN: DEFAULT_TIME_BUDGET
+	 */
+	MIPSolution solve(MIPSolution initialSolution, double timeBudget) {
+		Routes initialRoutes = initialSolution != null ? fromSolution(initialSolution) : null;
+		long deadline = System.currentTimeMillis()
+				+ (long)(1000 * (Double.isNaN(timeBudget) ? DEFAULT_TIME_BUDGET : timeBudget));
+
+		Routes best = IntStream.range(0, THREADS).parallel()//
+				.mapToObj(t -> new Search(t, initialRoutes).run(deadline))//
+				.min(Comparator.comparingDouble(r -> r.cost))//
+				.get();
+
+		return toSolution(best);
+	}
+
+	/**
+	 * Chains of requests served by each vehicle.
+	 */
+	private class Routes {
+		private final int[][] routes;// [k][position]
+		private final int[] lengths;// for each vehicle, k
+		private final double[] routeCosts;// for each vehicle, k
+		private double cost;
+
+		private Routes() {
+			routes = new int[m][4];
+			lengths = new int[m];
+			routeCosts = new double[m];
+		}
+
+		private Routes(Routes other) {
+			routes = new int[m][];
+			for (int k = 0; k < m; k++) {
+				routes[k] = other.routes[k].clone();
+			}
+			lengths = other.lengths.clone();
+			routeCosts = other.routeCosts.clone();
+			cost = other.cost;
+		}
+
+		private void insert(int k, int position, int i) {
+			int len = lengths[k];
+			if (len == routes[k].length) {
+				routes[k] = Arrays.copyOf(routes[k], 2 * len);
+			}
+			System.arraycopy(routes[k], position, routes[k], position + 1, len - position);
+			routes[k][position] = i;
+			lengths[k]++;
+			updateCost(k);
+		}
+
+		private void remove(int k, int position) {
+			int len = lengths[k];
+			System.arraycopy(routes[k], position + 1, routes[k], position, len - position - 1);
+			lengths[k]--;
+			updateCost(k);
+		}
+
+		private void updateCost(int k) {
+			double newRouteCost = calcRouteCost(routes[k], lengths[k], k, -1, -1, null);
+			cost += newRouteCost - routeCosts[k];
+			routeCosts[k] = newRouteCost;
+		}
+
+		private void recalcCost() {
+			cost = 0;
+			for (int k = 0; k < m; k++) {
+				routeCosts[k] = calcRouteCost(routes[k], lengths[k], k, -1, -1, null);
+				cost += routeCosts[k];
+			}
+		}
+	}
+
+	/**
+	 * Cost of route k (optionally with request {@code insertedReq} inserted at {@code insertedPosition}), i.e. total
+	 * waiting time plus W_MAX for each violated exclusion rule or time window. Writes w into {@code w} if not null.
+	 */
+	private double calcRouteCost(int[] route, int len, int k, int insertedReq, int insertedPosition, double[] w) {
+		double cost = 0;
+		double departure = a[k];
+		int prev = -1;
+
+		int totalLen = insertedReq < 0 ? len : len + 1;
+		for (int p = 0, q = 0; p < totalLen; p++) {
+			int i = p == insertedPosition ? insertedReq : route[q++];
+
+			double tt = prev < 0 ? vehToReqTimes[k][i] : reqToReqTimes[prev][i];
+			// tt may be +Inf (unreachable); w_i clamped so that the route cost stays finite (and W_MAX-penalised)
+			double w_i = Math.min(Math.max(e[i], departure + tt), e[i] + MIPGurobiSolver.W_MAX);
+			cost += w_i - e[i];
+
+			if (tt > MIPGurobiSolver.TP_MAX || w_i > l[i]
+					|| (prev >= 0 && e[prev] + totalT[prev] + tt > l[i])) {
+				cost += MIPGurobiSolver.W_MAX;
+			}
+
+			if (w != null) {
+				w[i] = w_i;
+			}
+
+			departure = w_i + totalT[i];
+			prev = i;
+		}
+
+		return cost;
+	}
+
+	private Routes fromSolution(MIPSolution solution) {
+		Routes routes = new Routes();
+		for (int k = 0; k < m; k++) {
+			for (int u = solution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = solution.successor[u]) {
+				routes.insert(k, routes.lengths[k], u - m);
+			}
+		}
+		routes.recalcCost();
+		return routes;
+	}
+
+	private MIPSolution toSolution(Routes routes) {
+		int[] successor = MIPSolution.createEmptySuccessors(m + n);
+		double[] w = new double[n];
+
+		for (int k = 0; k < m; k++) {
+			int u = k;
+			for (int p = 0; p < routes.lengths[k]; p++) {
+				int v = m + routes.routes[k][p];
+				successor[u] = v;
+				u = v;
+			}
+
+			calcRouteCost(routes.routes[k], routes.lengths[k], k, -1, -1, w);
+		}
+
+		return new MIPSolution(successor, w);
+	}
+
+	private class Search {
+		private final Random random;
+		private final Routes initial;
+
+		private final double[] destroyWeights = { 1, 1, 1 };// random, worst, related
+		private final double[] repairWeights = { 1, 1 };// greedy, regret-2
+		private final double[] destroyScores = new double[3];
+		private final double[] repairScores = new double[2];
+		private final int[] destroyUses = new int[3];
+		private final int[] repairUses = new int[2];
+
+		// where each request is (-1: unassigned); updated by locate()
+		private final int[] reqVehicle = new int[n];
+		private final int[] reqPosition = new int[n];
+
+		private Search(int seed, Routes initial) {
+			this.random = new Random(seed);
+			this.initial = initial;
+		}
+
+		private Routes run(long deadline) {
+			Routes current;
+			if (initial != null) {
+				current = new Routes(initial);
+			} else {
+				current = new Routes();
+				int[] all = IntStream.range(0, n).toArray();
+				greedyInsertion(current, all, all.length);
+			}
+
+			Routes best = new Routes(current);
+			long start = System.currentTimeMillis();
+			double t0 = 0.05 * current.cost / Math.log(2);// a 5% worse solution accepted with p=0.5 at the start
+			int[] removed = new int[n];
+
+			for (int iter = 1; System.currentTimeMillis() < deadline && n > 0; iter++) {
+				Routes candidate = new Routes(current);
+
+				int destroy = select(destroyWeights);
+				int repair = select(repairWeights);
+				int q = 1 + random.nextInt(Math.max(1, (int)(0.3 * n)));
+
+				int removedCount = destroy(destroy, candidate, removed, q);
+				if (repair == 0) {
+					greedyInsertion(candidate, removed, removedCount);
+				} else {
+					regretInsertion(candidate, removed, removedCount);
+				}
+
+				double fraction = (double)(System.currentTimeMillis() - start) / (deadline - start);
+				double temperature = t0 * Math.pow(0.001, fraction);
+
+				double score = 0;
+				if (candidate.cost < best.cost - 1e-6) {
+					best = new Routes(candidate);
+					current = candidate;
+					score = SCORE_NEW_BEST;
+				} else if (candidate.cost < current.cost - 1e-6) {
+					current = candidate;
+					score = SCORE_BETTER;
+				} else if (random.nextDouble() < Math.exp((current.cost - candidate.cost) / temperature)) {
+					current = candidate;
+					score = SCORE_ACCEPTED;
+				}
+
+				destroyScores[destroy] += score;
+				destroyUses[destroy]++;
+				repairScores[repair] += score;
+				repairUses[repair]++;
+
+				if (iter % SEGMENT_LENGTH == 0) {
+					updateWeights(destroyWeights, destroyScores, destroyUses);
+					updateWeights(repairWeights, repairScores, repairUses);
+				}
+			}
+
+			return best;
+		}
+
+		private int select(double[] weights) {
+			double sum = 0;
+			for (double weight : weights) {
+				sum += weight;
+			}
+			double r = random.nextDouble() * sum;
+			for (int o = 0; o < weights.length - 1; o++) {
+				r -= weights[o];
+				if (r < 0) {
+					return o;
+				}
+			}
+			return weights.length - 1;
+		}
+
+		private void updateWeights(double[] weights, double[] scores, int[] uses) {
+			for (int o = 0; o < weights.length; o++) {
+				if (uses[o] > 0) {
+					weights[o] = (1 - REACTION_FACTOR) * weights[o] + REACTION_FACTOR * scores[o] / uses[o];
+					weights[o] = Math.max(weights[o], 0.01);
+				}
+				scores[o] = 0;
+				uses[o] = 0;
+			}
+		}
+
+		private void locate(Routes routes) {
+			Arrays.fill(reqVehicle, -1);// unassigned
+			for (int k = 0; k < m; k++) {
+				for (int p = 0; p < routes.lengths[k]; p++) {
+					int i = routes.routes[k][p];
+					reqVehicle[i] = k;
+					reqPosition[i] = p;
+				}
+			}
+		}
+
+		private int destroy(int operator, Routes routes, int[] removed, int q) {
+			locate(routes);
+
+			int[] order;
+			switch (operator) {
+				case 0:
+					order = randomOrder();
+					break;
+				case 1:
+					order = worstOrder(routes);
+					break;
+				case 2:
+					order = relatedOrder();
+					break;
+				default:
+					throw new IllegalStateException();
+			}
+
+			System.arraycopy(order, 0, removed, 0, q);
+
+			// remove from the back of each route first, so that the positions of the others remain valid
+			Integer[] byPosition = new Integer[q];
+			for (int r = 0; r < q; r++) {
+				byPosition[r] = removed[r];
+			}
+			Arrays.sort(byPosition, (i, j) -> Integer.compare(reqPosition[j], reqPosition[i]));
+			for (int i : byPosition) {
+				if (reqVehicle[i] >= 0) {// unassigned requests are just re-inserted
+					routes.remove(reqVehicle[i], reqPosition[i]);
+				}
+			}
+
+			return q;
+		}
+
+		private int[] randomOrder() {
+			int[] order = IntStream.range(0, n).toArray();
+			for (int r = n - 1; r > 0; r--) {
+				int s = random.nextInt(r + 1);
+				int tmp = order[r];
+				order[r] = order[s];
+				order[s] = tmp;
+			}
+			return order;
+		}
+
+		// requests ordered by (randomised) removal gain
+		private int[] worstOrder(Routes routes) {
+			double[] gain = new double[n];
+			for (int k = 0; k < m; k++) {
+				int[] route = routes.routes[k];
+				int len = routes.lengths[k];
+				int[] shortened = new int[Math.max(len - 1, 0)];
+
+				for (int p = 0; p < len; p++) {
+					System.arraycopy(route, 0, shortened, 0, p);
+					System.arraycopy(route, p + 1, shortened, p, len - p - 1);
+					double costWithout = calcRouteCost(shortened, len - 1, k, -1, -1, null);
+					gain[route[p]] = (routes.routeCosts[k] - costWithout) * (0.5 + random.nextDouble());
+				}
+			}
+
+			return IntStream.range(0, n).boxed()//
+					.sorted((i, j) -> Double.compare(gain[j], gain[i]))//
+					.mapToInt(Integer::intValue)//
+					.toArray();
+		}
+
+		// requests ordered by relatedness (time and distance) to a random seed request
+		private int[] relatedOrder() {
+			int seed = random.nextInt(n);
+			double[] relatedness = new double[n];
+			for (int j = 0; j < n; j++) {
+				relatedness[j] = j == seed ? -1
+						: Math.abs(e[seed] - e[j]) + Math.min(reqToReqTimes[seed][j], reqToReqTimes[j][seed]);
+			}
+
+			return IntStream.range(0, n).boxed()//
+					.sorted(Comparator.comparingDouble(j -> relatedness[j]))//
+					.mapToInt(Integer::intValue)//
+					.toArray();
+		}
+
+		private void greedyInsertion(Routes routes, int[] requests, int count) {
+			insert(routes, requests, count, false);
+		}
+
+		private void regretInsertion(Routes routes, int[] requests, int count) {
+			insert(routes, requests, count, true);
+		}
+
+		/**
+		 * Inserts the requests one by one, each time choosing the request with the cheapest insertion (greedy) or the
+		 * highest regret-2 value. The best insertion into each route is cached and recalculated only for the route
+		 * that has just changed. Requests that cannot be inserted anywhere are left unassigned.
+		 */
+		private void insert(Routes routes, int[] requests, int count, boolean regret) {
+			double[][] insertionCost = new double[count][m];
+			int[][] insertionPosition = new int[count][m];
+			for (int r = 0; r < count; r++) {
+				for (int k = 0; k < m; k++) {
+					evaluate(routes, requests[r], k, insertionCost[r], insertionPosition[r]);
+				}
+			}
+
+			boolean[] inserted = new boolean[count];
+			for (int step = 0; step < count; step++) {
+				int bestR = -1;
+				int bestK = -1;
+				double bestValue = Double.NEGATIVE_INFINITY;
+
+				for (int r = 0; r < count; r++) {
+					if (inserted[r]) {
+						continue;
+					}
+
+					double first = Double.POSITIVE_INFINITY;
+					double second = Double.POSITIVE_INFINITY;
+					int firstK = -1;
+					for (int k = 0; k < m; k++) {
+						double c = insertionCost[r][k];
+						if (c < first) {
+							second = first;
+							first = c;
+							firstK = k;
+						} else if (c < second) {
+							second = c;
+						}
+					}
+					if (firstK < 0) {
+						continue;// no finite insertion cost (should not happen with clamped route costs)
+					}
+
+					double value;
+					if (regret) {
+						value = second == Double.POSITIVE_INFINITY ? MIPGurobiSolver.W_MAX : second - first;
+					} else {
+						value = -first;
+					}
+					if (value > bestValue) {
+						bestValue = value;
+						bestR = r;
+						bestK = firstK;
+					}
+				}
+
+				if (bestR < 0) {
+					break;// the remaining requests are left unassigned
+				}
+
+				inserted[bestR] = true;
+				routes.insert(bestK, insertionPosition[bestR][bestK], requests[bestR]);
+
+				for (int r = 0; r < count; r++) {
+					if (!inserted[r]) {
+						evaluate(routes, requests[r], bestK, insertionCost[r], insertionPosition[r]);
+					}
+				}
+			}
+		}
+
+		private void evaluate(Routes routes, int i, int k, double[] insertionCost, int[] insertionPosition) {
+			int len = routes.lengths[k];
+			double bestDelta = Double.POSITIVE_INFINITY;
+			int bestPosition = -1;
+
+			for (int p = 0; p <= len; p++) {
+				double delta = calcRouteCost(routes.routes[k], len, k, i, p, null) - routes.routeCosts[k];
+				if (delta < bestDelta) {
+					bestDelta = delta;
+					bestPosition = p;
+				}
+			}
+
+			insertionCost[k] = bestDelta;
+			insertionPosition[k] = bestPosition;
+		}
+	}
+}
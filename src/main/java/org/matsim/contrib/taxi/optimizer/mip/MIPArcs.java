@@ -0,0 +1,226 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+import org.matsim.contrib.taxi.run.TaxiConfigGroup;
+
+/**
+ * Arcs (u, m+i) that survive the exclusion rules, i.e. vehicle-to-request and request-to-request drives that
+ * may be used in a feasible solution. In the sparse model, x variables are created only for these arcs.
+ * <p>
+ * Arcs returning to the depots (u, k) are not stored; in the sparse model a chain simply ends at its last node
+ * (the outgoing constraints become "at most one").
+ *
+ * @author michalm
+ */
+class MIPArcs {
+	final int m;
+	final int n;
+
+	final int count;
+	final int[] from;// u
+	final int[] to;// m+i
+	final double[] time;// v2r: a_k + t_O_ki; r2r: t_P + t_i + t_D + t_ij
+
+	final int[][] outgoing;// arc indices, for each node u
+	final int[][] incoming;// arc indices, for each request i
+
+	private MIPArcs(int m, int n, int count, int[] from, int[] to, double[] time) {
+		this.m = m;
+		this.n = n;
+		this.count = count;
+		this.from = from;
+		this.to = to;
+		this.time = time;
+
+		int[] outDegree = new int[m + n];
+		int[] inDegree = new int[n];
+		for (int a = 0; a < count; a++) {
+			outDegree[from[a]]++;
+			inDegree[to[a] - m]++;
+		}
+
+		outgoing = new int[m + n][];
+		for (int u = 0; u < m + n; u++) {
+			outgoing[u] = new int[outDegree[u]];
+		}
+
+		incoming = new int[n][];
+		for (int i = 0; i < n; i++) {
+			incoming[i] = new int[inDegree[i]];
+		}
+
+		Arrays.fill(outDegree, 0);
+		Arrays.fill(inDegree, 0);
+		for (int a = 0; a < count; a++) {
+			outgoing[from[a]][outDegree[from[a]]++] = a;
+			int i = to[a] - m;
+			incoming[i][inDegree[i]++] = a;
+		}
+	}
+
+	boolean isVehToReq(int a) {
+		return from[a] < m;
+	}
+
+	/**
+	 * @param xValues
+	 *            values of the arc variables (x_uv >= 0.5 means the arc is used)
+	 * @return successor of each node (see {@link MIPSolution})
+	 */
+	int[] toSuccessors(double[] xValues) {
+		int[] successor = MIPSolution.createEmptySuccessors(m + n);
+		for (int a = 0; a < count; a++) {
+			if (xValues[a] >= 0.5) {
+				successor[from[a]] = to[a];
+			}
+		}
+		return successor;
+	}
+
+	/**
+	 * @return values of the arc variables that correspond to the solution (e.g. to be used as the MIP start)
+	 */
+	double[] toXValues(MIPSolution solution) {
+		double[] xValues = new double[count];
+		for (int a = 0; a < count; a++) {
+			xValues[a] = solution.successor[from[a]] == to[a] ? 1 : 0;
+		}
+		return xValues;
+	}
+
+	static MIPArcs create(TaxiConfigGroup taxiCfg, MIPTravelTimes travelTimes, MIPRequestData rData,
+			VehicleData vData) {
+		int n = rData.dimension;
+		int m = vData.getSize();
+		Builder builder = new Builder(m, n);
+
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < m; k++) {
+				double a_k = vData.getEntry(k).time;
+				double t_O_ki = travelTimes.getVehToReqTime(k, i);
+
+				if (!doExcludeVehToReqDrive(rData, i, a_k, t_O_ki)) {
+					builder.add(k, m + i, a_k + t_O_ki);
+				}
+			}
+		}
+
+		double t_P = taxiCfg.getPickupDuration();
+		double t_D = taxiCfg.getDropoffDuration();
+
+		for (int i = 0; i < n; i++) {
+			double t_i = travelTimes.getRideTime(i);
+			double totalT_i = t_P + t_i + t_D;
+
+			for (int j = 0; j < n; j++) {
+				if (i == j) {
+					continue;// x[m+i][m+i] = 1 is infeasible anyway
+				}
+
+				double t_ij = travelTimes.getReqToReqTime(i, j);
+
+				if (!doExcludeReqToReqDrive(rData, i, j, totalT_i, t_ij)) {
+					builder.add(m + i, m + j, totalT_i + t_ij);
+				}
+			}
+		}
+
+		return builder.build();
+	}
+
+	static boolean doExcludeVehToReqDrive(MIPRequestData rData, int i, double a_k, double t_O_ki) {
+		double l_i = rData.requests[i].getEarliestStartTime() + MIPGurobiSolver.TW_MAX;
+		double earliestArrival_i = a_k + t_O_ki;
+
+		// a_k + t_O_ki > l_i ==> x[k][m+i] = 0
+		if (earliestArrival_i > l_i) {
+			return true;
+		}
+
+		// t_O_ki > MAX_TP ==> x[k][m+i] = 0
+		if (t_O_ki > MIPGurobiSolver.TP_MAX) {
+			return true;
+		}
+
+		return false;
+	}
+
+	static boolean doExcludeReqToReqDrive(MIPRequestData rData, int i, int j, double totalT_i, double t_ij) {
+		double e_i = rData.requests[i].getEarliestStartTime();
+		double l_j = rData.requests[j].getEarliestStartTime() + MIPGurobiSolver.TW_MAX;
+		double earliestArrival_j = e_i + totalT_i + t_ij;
+
+		// e_i + t_P + t_i + t_D + t_ij > l_j ==> x[m+i][m+j] = 0
+		if (earliestArrival_j > l_j) {
+			return true;
+		}
+
+		// t_ij > MAX_TP ==> x[m+i][m+j] = 0
+		if (t_ij > MIPGurobiSolver.TP_MAX) {
+			return true;
+		}
+
+		return false;
+	}
+
+	static class Builder {
+		private final int m;
+		private final int n;
+
+		private int count = 0;
+		private int[] from;
+		private int[] to;
+		private double[] time;
+
+		Builder(int m, int n) {
+			this.m = m;
+			this.n = n;
+
+			int initialCapacity = Math.max(4 * (m + n), 16);
+			from = new int[initialCapacity];
+			to = new int[initialCapacity];
+			time = new double[initialCapacity];
+		}
+
+		void add(int u, int v, double t) {
+			if (count == from.length) {
+				int newCapacity = 2 * count;
+				from = Arrays.copyOf(from, newCapacity);
+				to = Arrays.copyOf(to, newCapacity);
+				time = Arrays.copyOf(time, newCapacity);
+			}
+
+			from[count] = u;
+			to[count] = v;
+			time[count] = t;
+			count++;
+		}
+
+		MIPArcs build() {
+			return new MIPArcs(m, n, count, Arrays.copyOf(from, count), Arrays.copyOf(to, count),
+					Arrays.copyOf(time, count));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+
+/**
+ * Solves the ONLINE_1 case (at most one request per vehicle, so n <= m) as a bipartite assignment of vehicles to
+ * requests, minimising the total passenger waiting time; no Gurobi license needed.
+ * <p>
+ * Chaining requests (m+i -> m+j) is not considered, which the MIP may use occasionally even in ONLINE_1.
+ * Arcs excluded in the MIP (see {@link MIPArcs}) are penalised with W_MAX and waiting times are capped at W_MAX
+ * (unreachable requests), so excluded arcs are used only if there is no other way of serving all requests (screened
+ * drives are +Infinity, see {@link MIPTravelTimeCache}).
+ *
+ * @author michalm
+ */
+class MIPAssignmentSolver {
+	private final MIPTravelTimes travelTimes;
+	private final MIPRequestData rData;
+	private final VehicleData vData;
+	private final int n;// request count
+	private final int m;// vehicle count
+
+	MIPAssignmentSolver(MIPTravelTimes travelTimes, MIPRequestData rData, VehicleData vData) {
+		this.travelTimes = travelTimes;
+		this.rData = rData;
+		this.vData = vData;
+
+		n = rData.dimension;
+		m = vData.getSize();
+	}
+
+	MIPSolution solve() {
+		double[][] cost = new double[n][m];
+		double[][] arrivals = new double[n][m];
+
+		for (int i = 0; i < n; i++) {
+			double e_i = rData.requests[i].getEarliestStartTime();
+
+			for (int k = 0; k < m; k++) {
+				double a_k = vData.getEntry(k).time;
+				double t_O_ki = travelTimes.getVehToReqTime(k, i);
+				// t_O_ki may be +Inf (unreachable); clamped so that the algorithm still sees finite costs
+				double w_i = Math.min(Math.max(e_i, a_k + t_O_ki), e_i + MIPGurobiSolver.W_MAX);
+
+				arrivals[i][k] = w_i;
+				cost[i][k] = w_i - e_i;// waiting time, at most W_MAX
+				if (MIPArcs.doExcludeVehToReqDrive(rData, i, a_k, t_O_ki)) {
+					cost[i][k] += MIPGurobiSolver.W_MAX;
+				}
+			}
+		}
+
+		int[] reqToVeh = HungarianAlgorithm.solve(cost);
+
+		int[] successor = MIPSolution.createEmptySuccessors(m + n);
+		double[] w = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			int k = reqToVeh[i];
+			successor[k] = m + i;
+			w[i] = arrivals[i][k];
+		}
+
+		return new MIPSolution(successor, w);
+	}
+}
@@ -0,0 +1,204 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+import org.matsim.contrib.taxi.run.TaxiConfigGroup;
+import org.matsim.core.utils.collections.QuadTree;
+
+/**
+ * Candidate arcs for large fleets: instead of all arcs that survive the exclusion rules (see {@link MIPArcs}),
+ * only the k nearest feasible vehicles and the k nearest feasible predecessors of each request are kept (nearest
+ * by the beeline; vehicle departure links and request dropoff links are indexed in quad-trees). For vehicles, k
+ * grows with m/n, so that the number of v2r arcs is about max(K_NEAREST * n, VEHICLE_COVERAGE * m), i.e. linear
+ * in the fleet size.
+ * <p>
+ * The arcs of the initial solution are always added, so that the MIP start remains feasible. Arcs missed by the
+ * pruning may be re-added later based on their reduced costs (see {@link MIPGurobiSolver}).
+ *
+ * @author michalm
+ */
+class MIPCandidateArcs {
+	static final int K_NEAREST = 10;
+	static final double VEHICLE_COVERAGE = 2;// each vehicle is a candidate of about that many requests
+	private static final double INITIAL_SEARCH_RADIUS = 2000;// [m]; doubled until k feasible found
+
+	static MIPArcs create(TaxiConfigGroup taxiCfg, MIPTravelTimes travelTimes, MIPRequestData rData,
+			VehicleData vData, MIPSolution initialSolution) {
+		int n = rData.dimension;
+		int m = vData.getSize();
+		MIPArcs.Builder builder = new MIPArcs.Builder(m, n);
+		Set<Long> added = new HashSet<>();
+
+		Coord[] departureCoords = new Coord[m];
+		for (int k = 0; k < m; k++) {
+			departureCoords[k] = vData.getEntry(k).link.getCoord();
+		}
+		Coord[] dropoffCoords = new Coord[n];
+		for (int i = 0; i < n; i++) {
+			dropoffCoords[i] = rData.requests[i].getToLink().getCoord();
+		}
+
+		NearestSearch vehicleSearch = new NearestSearch(departureCoords);
+		NearestSearch dropoffSearch = new NearestSearch(dropoffCoords);
+
+		double t_P = taxiCfg.getPickupDuration();
+		double t_D = taxiCfg.getDropoffDuration();
+		int kVeh = Math.max(K_NEAREST, (int)Math.ceil(VEHICLE_COVERAGE * m / Math.max(n, 1)));
+
+		for (int i = 0; i < n; i++) {
+			int j = i;// request j reached by the candidate arcs (i is not effectively final)
+			Coord pickupCoord = rData.requests[i].getFromLink().getCoord();
+
+			vehicleSearch.visitNearest(pickupCoord, kVeh, k -> {
+				double a_k = vData.getEntry(k).time;
+				double t_O_kj = travelTimes.getVehToReqTime(k, j);
+				if (MIPArcs.doExcludeVehToReqDrive(rData, j, a_k, t_O_kj)) {
+					return false;
+				}
+				addArc(builder, added, k, m + j, a_k + t_O_kj);
+				return true;
+			});
+
+			dropoffSearch.visitNearest(pickupCoord, K_NEAREST, p -> {
+				if (p == j) {
+					return false;
+				}
+				double totalT_p = t_P + travelTimes.getRideTime(p) + t_D;
+				double t_pj = travelTimes.getReqToReqTime(p, j);
+				if (MIPArcs.doExcludeReqToReqDrive(rData, p, j, totalT_p, t_pj)) {
+					return false;
+				}
+				addArc(builder, added, m + p, m + j, totalT_p + t_pj);
+				return true;
+			});
+		}
+
+		// arcs of the initial solution (if any and not excluded)
+		for (int u = 0; initialSolution != null && u < m + n; u++) {
+			int v = initialSolution.successor[u];
+			if (v == MIPSolution.NO_SUCCESSOR || added.contains(arcKey(u, v))) {
+				continue;
+			}
+
+			int j = v - m;
+			if (u < m) {
+				double a_k = vData.getEntry(u).time;
+				double t_O_kj = travelTimes.getVehToReqTime(u, j);
+				if (!MIPArcs.doExcludeVehToReqDrive(rData, j, a_k, t_O_kj)) {
+					addArc(builder, added, u, v, a_k + t_O_kj);
+				}
+			} else {
+				int i = u - m;
+				double totalT_i = t_P + travelTimes.getRideTime(i) + t_D;
+				double t_ij = travelTimes.getReqToReqTime(i, j);
+				if (!MIPArcs.doExcludeReqToReqDrive(rData, i, j, totalT_i, t_ij)) {
+					addArc(builder, added, u, v, totalT_i + t_ij);
+				}
+			}
+		}
+
+		return builder.build();
+	}
+
+	private static void addArc(MIPArcs.Builder builder, Set<Long> added, int u, int v, double time) {
+		if (added.add(arcKey(u, v))) {
+			builder.add(u, v, time);
+		}
+	}
+
+	static long arcKey(int u, int v) {
+		return ((long)u << 32) | v;
+	}
+
+	/**
+	 * Visits points in the order of increasing beeline distance.
+	 */
+	private static class NearestSearch {
+		private final Coord[] coords;
+		private final QuadTree<Integer> quadTree;
+
+		private NearestSearch(Coord[] coords) {
+			this.coords = coords;
+
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (Coord c : coords) {
+				minX = Math.min(minX, c.getX());
+				minY = Math.min(minY, c.getY());
+				maxX = Math.max(maxX, c.getX());
+				maxY = Math.max(maxY, c.getY());
+			}
+
+			quadTree = coords.length == 0 ? null : new QuadTree<>(minX, minY, maxX, maxY);
+			for (int p = 0; p < coords.length; p++) {
+				quadTree.put(coords[p].getX(), coords[p].getY(), p);
+			}
+		}
+
+		/**
+		 * @param accept
+		 *            returns true if the point counts as one of the k
+		 */
+		private void visitNearest(Coord centre, int k, IntPredicate accept) {
+			if (coords.length == 0) {
+				return;
+			}
+
+			Comparator<Integer> byDistance = Comparator.comparingDouble(p -> squaredDistance(centre, coords[p]));
+			int visitedCount = 0;// the points within the previous disk are the nearest ones
+			int acceptedCount = 0;
+			double radius = INITIAL_SEARCH_RADIUS;
+
+			while (true) {
+				List<Integer> disk = new ArrayList<>(quadTree.getDisk(centre.getX(), centre.getY(), radius));
+				disk.sort(byDistance);
+
+				for (int idx = visitedCount; idx < disk.size(); idx++) {
+					if (accept.test(disk.get(idx)) && ++acceptedCount == k) {
+						return;
+					}
+				}
+
+				if (disk.size() == coords.length) {
+					return;// all visited
+				}
+				visitedCount = disk.size();
+				radius *= 2;
+			}
+		}
+
+		private static double squaredDistance(Coord c1, Coord c2) {
+			double dx = c1.getX() - c2.getX();
+			double dy = c1.getY() - c2.getY();
+			return dx * dx + dy * dy;
+		}
+	}
+}
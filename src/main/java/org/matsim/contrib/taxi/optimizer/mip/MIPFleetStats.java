@@ -0,0 +1,94 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.dvrp.schedule.Task;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.schedule.TaxiPickupTask;
+
+/**
+ * Passenger waiting times (pickup begin - earliest start, as in
+ * {@link org.matsim.contrib.taxi.util.stats.TaxiStatsCalculator}) accumulated incrementally: each vehicle
+ * contributes the sum and count over the pickups in its schedule, and only the contributions of the touched
+ * vehicles are recalculated after an optimization, instead of passing over all schedules of the fleet.
+ * <p>
+ * Touched are the vehicles scheduled by the current and by the previous optimization (the latter may have lost
+ * or re-timed their planned pickups). The contributions of other vehicles may lag behind schedule delays until
+ * they are touched again.
+ *
+ * @author michalm
+ */
+class MIPFleetStats {
+	private final Map<Id<Vehicle>, double[]> contributions = new HashMap<>();// {wait time sum, pickup count}
+	private Set<Vehicle> lastTouched = new HashSet<>();
+
+	private double waitTimeSum = 0;
+	private long pickupCount = 0;
+
+	void update(Collection<Vehicle> scheduledVehicles) {
+		Set<Vehicle> touched = new HashSet<>(scheduledVehicles);
+		touched.addAll(lastTouched);
+
+		for (Vehicle vehicle : touched) {
+			double[] oldContribution = contributions.get(vehicle.getId());
+			if (oldContribution != null) {
+				waitTimeSum -= oldContribution[0];
+				pickupCount -= (long)oldContribution[1];
+			}
+
+			double[] contribution = calcContribution(vehicle);
+			contributions.put(vehicle.getId(), contribution);
+			waitTimeSum += contribution[0];
+			pickupCount += (long)contribution[1];
+		}
+
+		lastTouched = new HashSet<>(scheduledVehicles);
+	}
+
+	private static double[] calcContribution(Vehicle vehicle) {
+		double sum = 0;
+		int count = 0;
+		for (Task task : vehicle.getSchedule().getTasks()) {
+			if (task instanceof TaxiPickupTask) {
+				TaxiRequest request = ((TaxiPickupTask)task).getRequest();
+				sum += task.getBeginTime() - request.getEarliestStartTime();
+				count++;
+			}
+		}
+		return new double[] { sum, count };
+	}
+
+	double getMeanWaitTime() {
+		return pickupCount == 0 ? Double.NaN : waitTimeSum / pickupCount;
+	}
+
+	long getPickupCount() {
+		return pickupCount;
+	}
+}
@@ -0,0 +1,191 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
+
+import gurobi.*;
+
+/**
+ * Tracks the incumbents (and the MIP gap) while Gurobi is running and stops the optimization once the wall-clock
+ * deadline has passed or the gap has stopped improving (provided there is an incumbent).
+ * <p>
+ * If a {@link LazyConstraintSeparator} is given, each new incumbent (and optionally each node relaxation) is first
+ * checked against the lazy constraints; incumbents cut off by the added constraints are not recorded.
+ * <p>
+ * Without polishing, the optimization is aborted (the incumbent is then read from the model). With polishing,
+ * the incumbent at the deadline is handed over to the waiting caller ({@link #awaitPublishedIncumbent()}) and
+ * Gurobi keeps running (until its time limit or {@link #cancelPolishing()}); each better incumbent found
+ * afterwards is passed to the polishing listener.
+ *
+ * @author michalm
+ */
+class MIPGurobiCallback extends GRBCallback {
+	static final double GAP_STALL_TIME = 10;// [s] without improving the gap by MIN_GAP_IMPROVEMENT
+	static final double MIN_GAP_IMPROVEMENT = 0.001;
+
+	interface LazyConstraintSeparator {
+		/**
+		 * @param values
+		 *            of the callback variables (incumbent candidate or node relaxation)
+		 * @return number of violated constraints added via {@link MIPGurobiCallback#addLazyConstraint}
+		 */
+		int addViolatedConstraints(MIPGurobiCallback callback, double[] values) throws GRBException;
+	}
+
+	private final GRBVar[] vars;// incumbent values are stored for these variables
+	private final long deadlineNanos;// Long.MAX_VALUE: no deadline
+	private final long gapStallNanos;// Long.MAX_VALUE: no deadline (stalling does not matter)
+	private final BiConsumer<double[], Double> polishingListener;// null: no polishing (abort at the deadline)
+	private final LazyConstraintSeparator lazySeparator;// null: no lazy constraints
+	private final boolean separateAtNodes;// also cut off fractional node relaxations
+
+	private double[] incumbent;
+	private double incumbentObj = Double.POSITIVE_INFINITY;
+
+	private double bestGap = Double.POSITIVE_INFINITY;
+	private long lastGapImprovementNanos;
+	private boolean stopRequested = false;
+
+	private volatile double[] publishedIncumbent;
+	private final CountDownLatch published = new CountDownLatch(1);
+	private volatile boolean polishingCancelled = false;
+
+	/**
+	 * @param startNanos
+	 *            start of the solving (System.nanoTime()), the budget includes building the model
+	 * @param latencyBudget
+	 *            [s], Double.NaN: no deadline
+	 */
+	MIPGurobiCallback(GRBVar[] vars, long startNanos, double latencyBudget,
+			BiConsumer<double[], Double> polishingListener, LazyConstraintSeparator lazySeparator,
+			boolean separateAtNodes) {
+		this.vars = vars;
+		boolean hasDeadline = !Double.isNaN(latencyBudget);
+		this.deadlineNanos = hasDeadline ? startNanos + (long)(latencyBudget * 1_000_000_000) : Long.MAX_VALUE;
+		this.gapStallNanos = hasDeadline ? (long)(GAP_STALL_TIME * 1_000_000_000) : Long.MAX_VALUE;
+		this.polishingListener = polishingListener;
+		this.lazySeparator = lazySeparator;
+		this.separateAtNodes = separateAtNodes;
+		lastGapImprovementNanos = System.nanoTime();
+	}
+
+	void addLazyConstraint(GRBLinExpr expr, char sense, double rhs) throws GRBException {
+		addLazy(expr, sense, rhs);
+	}
+
+	@Override
+	protected void callback() {
+		try {
+			if (where == GRB.CB_MIPSOL) {
+				double obj = getDoubleInfo(GRB.CB_MIPSOL_OBJ);
+				double[] values = lazySeparator != null || obj < incumbentObj ? getSolution(vars) : null;
+
+				boolean cutOff = lazySeparator != null && lazySeparator.addViolatedConstraints(this, values) > 0;
+				if (!cutOff && obj < incumbentObj) {
+					incumbentObj = obj;
+					incumbent = values;
+
+					if (publishedIncumbent != null) {
+						polishingListener.accept(incumbent, obj);
+					}
+				}
+			} else if (where == GRB.CB_MIPNODE) {
+				if (separateAtNodes && lazySeparator != null
+						&& getIntInfo(GRB.CB_MIPNODE_STATUS) == GRB.Status.OPTIMAL) {
+					lazySeparator.addViolatedConstraints(this, getNodeRel(vars));
+				}
+			} else if (where == GRB.CB_MIP) {
+				updateGap(getDoubleInfo(GRB.CB_MIP_OBJBST), getDoubleInfo(GRB.CB_MIP_OBJBND));
+			}
+
+			if (polishingCancelled && publishedIncumbent != null) {
+				abort();
+				return;
+			}
+
+			if (incumbent != null && !stopRequested && isTimeUp()) {
+				stopRequested = true;
+				if (polishingListener == null) {
+					abort();
+				} else {
+					publish();
+				}
+			}
+		} catch (GRBException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void updateGap(double objBst, double objBnd) {
+		if (objBst >= GRB.INFINITY) {
+			return;// no incumbent yet
+		}
+
+		double gap = objBst == 0 ? Math.abs(objBnd) : Math.abs(objBst - objBnd) / Math.abs(objBst);
+		if (gap < bestGap - MIN_GAP_IMPROVEMENT) {
+			bestGap = gap;
+			lastGapImprovementNanos = System.nanoTime();
+		}
+	}
+
+	private boolean isTimeUp() {
+		long now = System.nanoTime();
+		return now >= deadlineNanos || now - lastGapImprovementNanos >= gapStallNanos;
+	}
+
+	private void publish() {
+		publishedIncumbent = incumbent;
+		published.countDown();
+	}
+
+	/**
+	 * Polishing only: aborts the optimization at the next callback (after the incumbent has been published).
+	 */
+	void cancelPolishing() {
+		polishingCancelled = true;
+	}
+
+	/**
+	 * To be called (polishing only) after the optimization has ended, so that the caller is not left waiting if
+	 * Gurobi finished (or failed) before the deadline.
+	 */
+	void optimizationEnded() {
+		if (publishedIncumbent == null) {
+			publish();
+		}
+	}
+
+	/**
+	 * Polishing only: blocks until the deadline (or the end of the optimization).
+	 *
+	 * @return values of the variables (null if no incumbent has been found)
+	 */
+	double[] awaitPublishedIncumbent() {
+		try {
+			published.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		return publishedIncumbent;
+	}
+}
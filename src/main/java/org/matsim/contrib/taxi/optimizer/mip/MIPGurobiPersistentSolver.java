@@ -0,0 +1,428 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.dvrp.data.Request;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.gurobi.GurobiEnvPool;
+import org.matsim.contrib.gurobi.GurobiProfile;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+import org.matsim.contrib.taxi.run.TaxiConfigGroup;
+
+import gurobi.*;
+
+/**
+ * Sparse MIP model (see {@link MIPGurobiSolver}) kept alive across optimizations. Nodes and arcs are identified by
+ * request/vehicle ids, so each call only:
+ * <ul>
+ * <li>removes the rows and columns of requests/vehicles that are gone (e.g. picked-up requests),</li>
+ * <li>adds the new request/vehicle nodes and arcs,</li>
+ * <li>updates the vehicle departure coefficients (a_k + t_O_ki) of the remaining arcs in place,</li>
+ * <li>re-solves starting from the previous incumbent.</li>
+ * </ul>
+ *
+ * @author michalm
+ */
+class MIPGurobiPersistentSolver {
+	private static class ReqNode {
+		private final GRBVar w;
+		private GRBConstr incoming;
+		private GRBConstr outgoing;
+		private GRBConstr vehToReq;
+
+		private ReqNode(GRBVar w) {
+			this.w = w;
+		}
+	}
+
+	private static class ArcKey {
+		private final boolean fromVehicle;
+		private final Id<?> from;
+		private final Id<Request> to;
+
+		private ArcKey(boolean fromVehicle, Id<?> from, Id<Request> to) {
+			this.fromVehicle = fromVehicle;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ArcKey)) {
+				return false;
+			}
+			ArcKey other = (ArcKey)o;
+			return fromVehicle == other.fromVehicle && from.equals(other.from) && to.equals(other.to);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fromVehicle, from, to);
+		}
+	}
+
+	private static class ArcEntry {
+		private final GRBVar x;
+		private GRBConstr reqToReq;// null for v2r arcs
+		private double time;
+		private boolean inIncumbent;
+
+		private ArcEntry(GRBVar x, double time) {
+			this.x = x;
+			this.time = time;
+		}
+	}
+
+	private final TaxiConfigGroup taxiCfg;
+	private final GurobiProfile profile = GurobiProfile.ONLINE;
+
+	private GurobiEnvPool.Lease envLease;// held as long as the model lives
+	private GRBModel model;
+
+	private final Map<Id<Request>, ReqNode> reqNodes = new HashMap<>();
+	private final Map<Id<Vehicle>, GRBConstr> vehOutgoing = new HashMap<>();
+	private final Map<ArcKey, ArcEntry> arcEntries = new HashMap<>();
+	private boolean hasIncumbent = false;
+
+	// current instance
+	private MIPRequestData rData;
+	private VehicleData vData;
+	private MIPArcs arcs;
+	private int m;
+	private int n;
+	private ArcKey[] arcKeys;// for each arc
+	private ArcEntry[] arcs2Entries;// for each arc
+	private ReqNode[] currentReqNodes;// for each request, i
+	private boolean[] isNewNode;// for each node, u
+	private boolean[] isNewArc;// for each arc
+
+	MIPGurobiPersistentSolver(TaxiConfigGroup taxiCfg) {
+		this.taxiCfg = taxiCfg;
+	}
+
+	MIPSolution solve(MIPRequestData rData, VehicleData vData, MIPTravelTimes travelTimes,
+			MIPSolution initialSolution) {
+		this.rData = rData;
+		this.vData = vData;
+		n = rData.dimension;
+		m = vData.getSize();
+
+		try {
+			if (model == null) {
+				initModel();
+			}
+
+			arcs = MIPArcs.create(taxiCfg, travelTimes, rData, vData);
+			arcKeys = new ArcKey[arcs.count];
+			for (int a = 0; a < arcs.count; a++) {
+				arcKeys[a] = createArcKey(a);
+			}
+
+			removeObsoleteArcs();
+			removeObsoleteNodes();
+
+			addNewVariables();
+			model.update();
+
+			addNewNodeConstraints();
+			updateExistingNodeConstraints();
+			model.update();
+
+			applyStart(initialSolution);
+
+			model.optimize();
+
+			return extractSolution();
+		} catch (GRBException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void dispose() {
+		if (model == null) {
+			return;
+		}
+
+		try {
+			model.dispose();
+		} catch (GRBException e) {
+			throw new RuntimeException(e);
+		} finally {
+			envLease.close();
+		}
+
+		model = null;
+		reqNodes.clear();
+		vehOutgoing.clear();
+		arcEntries.clear();
+		hasIncumbent = false;
+	}
+
+	private void initModel() throws GRBException {
+		envLease = GurobiEnvPool.shared().borrow(profile);
+		model = new GRBModel(envLease.env);
+		model.set(GRB.IntAttr.ModelSense, 1);
+	}
+
+	private ArcKey createArcKey(int a) {
+		Id<Request> to = rData.requests[arcs.to[a] - m].getId();
+		return arcs.isVehToReq(a) ? //
+				new ArcKey(true, vData.getEntry(arcs.from[a]).vehicle.getId(), to) : //
+				new ArcKey(false, rData.requests[arcs.from[a] - m].getId(), to);
+	}
+
+	private void removeObsoleteArcs() throws GRBException {
+		Set<ArcKey> currentArcs = new HashSet<>(Arrays.asList(arcKeys));
+
+		Iterator<Map.Entry<ArcKey, ArcEntry>> iter = arcEntries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<ArcKey, ArcEntry> e = iter.next();
+			if (!currentArcs.contains(e.getKey())) {
+				ArcEntry entry = e.getValue();
+				model.remove(entry.x);// also removes its coefficients in the degree/v2r constraints
+				if (entry.reqToReq != null) {
+					model.remove(entry.reqToReq);
+				}
+				iter.remove();
+			}
+		}
+	}
+
+	private void removeObsoleteNodes() throws GRBException {
+		Map<Id<Request>, Integer> reqIdToIdx = rData.reqIdToIdx;
+		Iterator<Map.Entry<Id<Request>, ReqNode>> reqIter = reqNodes.entrySet().iterator();
+		while (reqIter.hasNext()) {
+			Map.Entry<Id<Request>, ReqNode> e = reqIter.next();
+			if (!reqIdToIdx.containsKey(e.getKey())) {
+				ReqNode node = e.getValue();
+				model.remove(node.w);
+				model.remove(node.incoming);
+				model.remove(node.outgoing);
+				model.remove(node.vehToReq);
+				reqIter.remove();
+			}
+		}
+
+		Set<Id<Vehicle>> vehIds = new HashSet<>(2 * m);
+		for (int k = 0; k < m; k++) {
+			vehIds.add(vData.getEntry(k).vehicle.getId());
+		}
+
+		Iterator<Map.Entry<Id<Vehicle>, GRBConstr>> vehIter = vehOutgoing.entrySet().iterator();
+		while (vehIter.hasNext()) {
+			Map.Entry<Id<Vehicle>, GRBConstr> e = vehIter.next();
+			if (!vehIds.contains(e.getKey())) {
+				model.remove(e.getValue());
+				vehIter.remove();
+			}
+		}
+	}
+
+	private void addNewVariables() throws GRBException {
+		isNewNode = new boolean[m + n];
+		for (int k = 0; k < m; k++) {
+			isNewNode[k] = !vehOutgoing.containsKey(vData.getEntry(k).vehicle.getId());
+		}
+
+		currentReqNodes = new ReqNode[n];
+		for (int i = 0; i < n; i++) {
+			TaxiRequest req = rData.requests[i];
+			ReqNode node = reqNodes.get(req.getId());
+
+			if (node == null) {
+				double e_i = req.getEarliestStartTime();
+				double l_i = Math.min(e_i + MIPGurobiSolver.TW_MAX, MIPGurobiSolver.W_MAX);
+				node = new ReqNode(model.addVar(e_i, l_i, 1, GRB.CONTINUOUS, "w_" + req.getId()));
+				reqNodes.put(req.getId(), node);
+				isNewNode[m + i] = true;
+			}
+
+			currentReqNodes[i] = node;
+		}
+
+		arcs2Entries = new ArcEntry[arcs.count];
+		isNewArc = new boolean[arcs.count];
+		for (int a = 0; a < arcs.count; a++) {
+			ArcEntry entry = arcEntries.get(arcKeys[a]);
+			if (entry == null) {
+				isNewArc[a] = true;
+				entry = new ArcEntry(model.addVar(0, 1, 0, GRB.BINARY, "x_" + a), arcs.time[a]);
+				arcEntries.put(arcKeys[a], entry);
+			}
+			arcs2Entries[a] = entry;
+		}
+	}
+
+	private void addNewNodeConstraints() throws GRBException {
+		for (int k = 0; k < m; k++) {
+			if (isNewNode[k]) {
+				vehOutgoing.put(vData.getEntry(k).vehicle.getId(),
+						model.addConstr(sumOfArcs(arcs.outgoing[k]), GRB.LESS_EQUAL, 1, "outgoing: veh_" + vData.getEntry(k).vehicle.getId()));
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (!isNewNode[m + i]) {
+				continue;
+			}
+
+			// all arcs adjacent to a new node are new
+			ReqNode node = currentReqNodes[i];
+			Id<Request> id = rData.requests[i].getId();
+			node.incoming = model.addConstr(sumOfArcs(arcs.incoming[i]), GRB.EQUAL, 1, "incoming: req_" + id);
+			node.outgoing = model.addConstr(sumOfArcs(arcs.outgoing[m + i]), GRB.LESS_EQUAL, 1,
+					"outgoing: req_" + id);
+
+			GRBLinExpr expr = new GRBLinExpr();
+			expr.addTerm(1, node.w);
+			for (int a : arcs.incoming[i]) {
+				if (arcs.isVehToReq(a)) {
+					expr.addTerm(-arcs.time[a], arcs2Entries[a].x);// a_k + t_O_ki
+				}
+			}
+			node.vehToReq = model.addConstr(expr, GRB.GREATER_EQUAL, 0, "w(v2r)_" + id);
+		}
+	}
+
+	private void updateExistingNodeConstraints() throws GRBException {
+		for (int a = 0; a < arcs.count; a++) {
+			ArcEntry entry = arcs2Entries[a];
+			int u = arcs.from[a];
+			int i = arcs.to[a] - m;
+			ReqNode toNode = currentReqNodes[i];
+
+			if (isNewArc[a]) {
+				if (!isNewNode[u]) {
+					GRBConstr outgoing = u < m ? vehOutgoing.get(vData.getEntry(u).vehicle.getId())
+							: currentReqNodes[u - m].outgoing;
+					model.chgCoeff(outgoing, entry.x, 1);
+				}
+
+				if (!isNewNode[m + i]) {
+					model.chgCoeff(toNode.incoming, entry.x, 1);
+					if (arcs.isVehToReq(a)) {
+						model.chgCoeff(toNode.vehToReq, entry.x, -arcs.time[a]);
+					}
+				}
+
+				if (!arcs.isVehToReq(a)) {
+					entry.reqToReq = addReqToReqConstraint(a, entry);
+				}
+			} else if (entry.time != arcs.time[a]) {
+				// vehicle departure (a_k, t_O_ki) or travel times have changed
+				if (arcs.isVehToReq(a)) {
+					model.chgCoeff(toNode.vehToReq, entry.x, -arcs.time[a]);
+				} else {
+					model.chgCoeff(entry.reqToReq, entry.x, -arcs.time[a] - MIPGurobiSolver.W_MAX);
+				}
+			}
+
+			entry.time = arcs.time[a];
+		}
+
+		double objCon = 0;
+		for (int i = 0; i < n; i++) {
+			objCon -= rData.requests[i].getEarliestStartTime();
+		}
+		model.set(GRB.DoubleAttr.ObjCon, objCon);
+	}
+
+	private GRBConstr addReqToReqConstraint(int a, ArcEntry entry) throws GRBException {
+		int i = arcs.from[a] - m;
+		int j = arcs.to[a] - m;
+
+		GRBLinExpr expr = new GRBLinExpr();
+		expr.addTerm(1, currentReqNodes[j].w);
+		expr.addTerm(-1, currentReqNodes[i].w);
+		expr.addConstant(MIPGurobiSolver.W_MAX);
+		expr.addTerm(-arcs.time[a] - MIPGurobiSolver.W_MAX, entry.x);// t_P + t_i + t_D + t_ij
+		return model.addConstr(expr, GRB.GREATER_EQUAL, 0,
+				"w(r2r)_" + rData.requests[i].getId() + "," + rData.requests[j].getId());
+	}
+
+	private GRBLinExpr sumOfArcs(int[] arcIndices) {
+		GRBLinExpr expr = new GRBLinExpr();
+		for (int a : arcIndices) {
+			expr.addTerm(1, arcs2Entries[a].x);
+		}
+		return expr;
+	}
+
+	private void applyStart(MIPSolution initialSolution) throws GRBException {
+		GRBVar[] arcVar = getArcVariables();
+		double[] xStart;
+		if (hasIncumbent) {
+			// partial start (previous incumbent), Gurobi completes it
+			xStart = new double[arcs.count];
+			for (int a = 0; a < arcs.count; a++) {
+				xStart[a] = arcs2Entries[a].inIncumbent ? 1 : GRB.UNDEFINED;
+			}
+		} else {
+			xStart = arcs.toXValues(initialSolution);
+		}
+		model.set(GRB.DoubleAttr.Start, arcVar, xStart);
+
+		GRBVar[] wVar = getWVariables();
+		double[] wStart = new double[n];
+		for (int i = 0; i < n; i++) {
+			wStart[i] = hasIncumbent ? GRB.UNDEFINED : initialSolution.w[i];
+		}
+		model.set(GRB.DoubleAttr.Start, wVar, wStart);
+	}
+
+	private MIPSolution extractSolution() throws GRBException {
+		double[] xValues = model.get(GRB.DoubleAttr.X, getArcVariables());
+		double[] w = model.get(GRB.DoubleAttr.X, getWVariables());
+
+		for (int a = 0; a < arcs.count; a++) {
+			arcs2Entries[a].inIncumbent = xValues[a] >= 0.5;
+		}
+		hasIncumbent = true;
+
+		return new MIPSolution(arcs.toSuccessors(xValues), w);
+	}
+
+	private GRBVar[] getArcVariables() {
+		GRBVar[] arcVar = new GRBVar[arcs.count];
+		for (int a = 0; a < arcs.count; a++) {
+			arcVar[a] = arcs2Entries[a].x;
+		}
+		return arcVar;
+	}
+
+	private GRBVar[] getWVariables() {
+		GRBVar[] wVar = new GRBVar[n];
+		for (int i = 0; i < n; i++) {
+			wVar[i] = currentReqNodes[i].w;
+		}
+		return wVar;
+	}
+}
@@ -19,8 +19,14 @@
 
 package org.matsim.contrib.taxi.optimizer.mip;
 
-import org.matsim.api.core.v01.network.Link;
-import org.matsim.contrib.taxi.data.TaxiRequest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.matsim.contrib.gurobi.GurobiEnvPool;
+import org.matsim.contrib.gurobi.GurobiProfile;
 import org.matsim.contrib.taxi.optimizer.*;
 import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
 import org.matsim.contrib.taxi.run.TaxiConfigGroup;
@@ -28,42 +34,80 @@ import org.matsim.contrib.taxi.run.TaxiConfigGroup;
 import gurobi.*;
 
 class MIPGurobiSolver {
-	private static enum Mode {
-		OFFLINE(7200, true), //
-		ONLINE(60, false);//
+	static final double W_MAX = 30 * 60 * 60;// 30 hours
 
-		private Mode(double timeLimit, boolean output) {
-			this.timeLimit = timeLimit;
-			this.output = output;
-		}
-
-		private final double timeLimit;
-		private final boolean output;
-	}
-
-	private static final double W_MAX = 30 * 60 * 60;// 30 hours
-
-	private static final double TW_MAX = 1.5 * 60 * 60;// 1.5 hours (Mielec)
-	private static final double TP_MAX = 20 * 60;// 20 minutes (Mielec)
+	static final double TW_MAX = 1.5 * 60 * 60;// 1.5 hours (Mielec)
+	static final double TP_MAX = 20 * 60;// 20 minutes (Mielec)
 
 	private final TaxiConfigGroup taxiCfg;
-	private final PathTreeBasedTravelTimeCalculator pathTravelTimeCalc;
+	private final MIPTravelTimes travelTimes;
 	private final MIPRequestData rData;
 	private final VehicleData vData;
 	private final int n;// request count
 	private final int m;// vehicle count
 
 	private GRBModel model;
-	private GRBVar[][] xVar;// for each request/vehicle pair, (i, j)
+	private GRBVar[][] xVar;// for each request/vehicle pair, (i, j); dense model only
 	private GRBVar[] wVar; // for each request, i
 
-	// private final Mode mode = Mode.OFFLINE;
-	private final Mode mode = Mode.ONLINE;
+	private double gap = Double.NaN;// at termination; synchronous solving only
+	private MIPPhaseRecord phaseRecord;// optional
+
+	private MIPArcs arcs;// sparse model only
+	private GRBVar[] arcVar;// for each arc; sparse model only
+
+	// sparse model only; for pricing out the arcs pruned by MIPCandidateArcs
+	private GRBConstr[] incomingConstr;// for each request, i
+	private GRBConstr[] outgoingConstr;// for each node, u; null if no outgoing arcs
+	private GRBConstr[] vehToReqConstr;// for each request, i
+
+	interface PolishingListener {
+		void solutionPolished(MIPSolution solution, double objective);
+	}
+
+	private static final ExecutorService POLISHING_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "MIP polishing");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// polishing holds the env lease until it ends: at most POLISHING_TIME_LIMIT after the latency budget (or once
+	// cancelled), and with fewer threads, so that the simulation and the next optimization still get the cores
+	static final double POLISHING_TIME_LIMIT = 30;// [s]
+	private static final int POLISHING_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private MIPGurobiCallback polishingCallback;
+
+	// private static final GurobiProfile DEFAULT_PROFILE = GurobiProfile.OFFLINE;
+	private static final GurobiProfile DEFAULT_PROFILE = GurobiProfile.ONLINE;
+	private final GurobiProfile profile;
+
+	// sparse: x variables only for arcs that survive the exclusion rules (see MIPArcs)
+	// dense: (m+n)x(m+n) x variables, the excluded ones are fixed to 0 by extra constraints
+	private final boolean sparse = true;
+
+	// true: the r2r constraints are not added up front, but only once violated by a new incumbent (and, with
+	// lazyAtNodes, by a node relaxation); sparse model only
+	private final boolean lazyReqToReq = false;
+	private final boolean lazyAtNodes = false;
+	private static final double LAZY_VIOLATION_TOLERANCE = 1e-3;// [s]
+
+	// large fleets: only the k nearest candidate arcs (see MIPCandidateArcs); sparse model only
+	// verification: pruned arcs with negative reduced costs in the LP relaxation are re-added (and the model
+	// rebuilt), at most MAX_VERIFICATION_ROUNDS times
+	static final int CANDIDATE_ARCS_MIN_VEHICLES = 1000;
+	private final boolean verifyCandidateArcs = true;
+	private static final int MAX_VERIFICATION_ROUNDS = 3;
+	private static final double REDUCED_COST_TOLERANCE = 1e-6;
+
+	MIPGurobiSolver(TaxiConfigGroup taxiCfg, MIPTravelTimes travelTimes, MIPRequestData rData, VehicleData vData) {
+		this(taxiCfg, travelTimes, rData, vData, DEFAULT_PROFILE);
+	}
 
-	MIPGurobiSolver(TaxiConfigGroup taxiCfg, PathTreeBasedTravelTimeCalculator pathTravelTimeCalc,
-			MIPRequestData rData, VehicleData vData) {
+	MIPGurobiSolver(TaxiConfigGroup taxiCfg, MIPTravelTimes travelTimes, MIPRequestData rData, VehicleData vData,
+			GurobiProfile profile) {
 		this.taxiCfg = taxiCfg;
-		this.pathTravelTimeCalc = pathTravelTimeCalc;
+		this.profile = profile;
+		this.travelTimes = travelTimes;
 		this.rData = rData;
 		this.vData = vData;
 
@@ -72,55 +116,321 @@ class MIPGurobiSolver {
 	}
 
 	MIPSolution solve(MIPSolution initialSolution) {
-		try {
-			model = new GRBModel(new GRBEnv());
+		return solve(initialSolution, Double.NaN, null);
+	}
 
-			// this is the internal model (a copy of that passed to the constructor)
-			GRBEnv env = model.getEnv();
+	/**
+	 * The phases (model build, optimize, extraction), the model size and the outcome are recorded there.
+	 */
+	void setPhaseRecord(MIPPhaseRecord phaseRecord) {
+		this.phaseRecord = phaseRecord;
+	}
+
+	/**
+	 * @param latencyBudget
+	 *            wall-clock time [s] after which the best incumbent is returned (see {@link MIPGurobiCallback});
+	 *            Double.NaN: no budget, only the time limit of the profile
+	 * @param polishingListener
+	 *            if not null (requires a budget), Gurobi keeps running in the background after the budget has run
+	 *            out, and each improved solution is passed to the listener
+	 */
+	MIPSolution solve(MIPSolution initialSolution, double latencyBudget, PolishingListener polishingListener) {
+		long startNanos = System.nanoTime();
+		boolean polishing = polishingListener != null;
+		if (polishing && Double.isNaN(latencyBudget)) {
+			throw new IllegalArgumentException("Polishing requires a latency budget");
+		}
 
-			env.set(GRB.DoubleParam.TimeLimit, mode.timeLimit);// 2 hours
-			// env.set(GRB.DoubleParam.MIPGap, 0.001);//0.1%
+		// time limit, output etc. are set in the profile
+		GurobiEnvPool.Lease lease = GurobiEnvPool.shared().borrow(profile);
+		MIPGurobiCallback callback = null;
+		try {
+			model = new GRBModel(lease.env);
 
 			// env.set(GRB.IntParam.MIPFocus, 1);//the focus towards finding feasible solutions
 			// or alternatively: focus towards finding feasible solutions after 1 hour
 			// env.set(GRB.DoubleParam.ImproveStartTime, 3600);
 
-			// env.set(GRB.IntParam.Threads, 1);//number of threads
+			if (sparse) {
+				buildSparseModel(lease.env, initialSolution);
+			} else {
+				buildDenseModel();
+			}
 
-			env.set(GRB.IntParam.OutputFlag, mode.output ? 1 : 0);// output
+			// model.write("D:/model.lp");
 
-			addXVariables();
-			addWVariables();
-			model.update();
+			if (initialSolution != null) {
+				applyInitialSolution(initialSolution);
+			}
 
-			setObjective();
+			boolean lazy = sparse && lazyReqToReq;
+			if (lazy) {
+				model.getEnv().set(GRB.IntParam.LazyConstraints, 1);
+			}
 
-			addOneIncomingConstraint();
-			addOneOutgoingConstraint();
+			if (polishing) {
+				model.getEnv().set(GRB.DoubleParam.TimeLimit,
+						Math.min(profile.timeLimit, latencyBudget + POLISHING_TIME_LIMIT));
+				model.getEnv().set(GRB.IntParam.Threads, POLISHING_THREADS);
+			}
 
-			addVehToReqLinConstraint();
-			addReqToReqLinConstraint();
-			model.update();
+			if (!Double.isNaN(latencyBudget) || lazy) {
+				callback = new MIPGurobiCallback(getAllVariables(), startNanos, latencyBudget,
+						polishing ? (values, obj) -> polishingListener.solutionPolished(toSolution(values), obj)
+								: null,
+						lazy ? this::addViolatedReqToReqConstraints : null, lazyAtNodes);
+				model.setCallback(callback);
+			}
 
-			// model.write("D:/model.lp");
+			if (phaseRecord != null) {
+				phaseRecord.addPhaseTime(MIPPhaseRecord.Phase.MODEL_BUILD, startNanos);
+				phaseRecord.arcCount = sparse ? arcs.count : (m + n) * (m + n);
+				phaseRecord.constraintCount = model.get(GRB.IntAttr.NumConstrs);
+			}
+		} catch (GRBException e) {
+			disposeModel(lease);
+			throw new RuntimeException(e);
+		}
 
-			applyInitialSolution(initialSolution);
+		if (polishing) {
+			return optimizeInBackground(callback, lease, initialSolution);
+		}
 
+		try {
+			long optimizeStartNanos = System.nanoTime();
 			model.optimize();
 
-			if (mode.output) {
-				model.write("D:/gurobi_solution.sol");
+			// no solution (e.g. the budget ended before the rejected MIP start was repaired): no gap to read
+			boolean hasSolution = model.get(GRB.IntAttr.SolCount) > 0;
+			gap = hasSolution ? model.get(GRB.DoubleAttr.MIPGap) : Double.NaN;
+			if (phaseRecord != null) {
+				phaseRecord.addPhaseTime(MIPPhaseRecord.Phase.OPTIMIZE, optimizeStartNanos);
+				phaseRecord.status = model.get(GRB.IntAttr.Status);
+				phaseRecord.gap = gap;
+				phaseRecord.nodeCount = model.get(GRB.DoubleAttr.NodeCount);
 			}
 
-			MIPSolution solution = extractSolution();
+			if (!hasSolution) {
+				return getFallbackSolution(initialSolution);
+			}
 
-			model.dispose();
-			env.dispose();
+			long extractionStartNanos = System.nanoTime();
+			MIPSolution solution = extractSolution();
+			if (phaseRecord != null) {
+				phaseRecord.addPhaseTime(MIPPhaseRecord.Phase.EXTRACTION, extractionStartNanos);
+			}
 
+			if (profile.output) {
+				MIPPlanIO.write("D:/" + MIPProblem.PLAN_FILE, rData, vData, solution);
+			}
 			return solution;
 		} catch (GRBException e) {
 			throw new RuntimeException(e);
+		} finally {
+			disposeModel(lease);
+		}
+	}
+
+	double getGap() {
+		return gap;
+	}
+
+	/**
+	 * Stops background polishing (if running); the lease is given back once Gurobi has stopped.
+	 */
+	void cancelPolishing() {
+		if (polishingCallback != null) {
+			polishingCallback.cancelPolishing();
+		}
+	}
+
+	private MIPSolution optimizeInBackground(MIPGurobiCallback callback, GurobiEnvPool.Lease lease,
+			MIPSolution initialSolution) {
+		polishingCallback = callback;
+		POLISHING_EXECUTOR.execute(() -> {
+			try {
+				model.optimize();
+			} catch (GRBException e) {
+				throw new RuntimeException(e);
+			} finally {
+				callback.optimizationEnded();
+				disposeModel(lease);
+			}
+		});
+
+		long optimizeStartNanos = System.nanoTime();
+		double[] values = callback.awaitPublishedIncumbent();
+		if (phaseRecord != null) {
+			phaseRecord.addPhaseTime(MIPPhaseRecord.Phase.OPTIMIZE, optimizeStartNanos);// until published
+		}
+		if (values == null) {
+			return getFallbackSolution(initialSolution);
+		}
+		return toSolution(values);
+	}
+
+	private static MIPSolution getFallbackSolution(MIPSolution initialSolution) {
+		if (initialSolution == null) {
+			throw new RuntimeException("No solution found");
+		}
+		return initialSolution;
+	}
+
+	private void disposeModel(GurobiEnvPool.Lease lease) {
+		if (model != null) {
+			model.dispose();
+		}
+		lease.close();
+	}
+
+	private void buildDenseModel() throws GRBException {
+		addXVariables();
+		addWVariables();
+		model.update();
+
+		setObjective();
+
+		addOneIncomingConstraint();
+		addOneOutgoingConstraint();
+
+		addVehToReqLinConstraint();
+		addReqToReqLinConstraint();
+		model.update();
+	}
+
+	// env: the leased one; the model is rebuilt in it after re-adding priced-out arcs
+	private void buildSparseModel(GRBEnv env, MIPSolution initialSolution) throws GRBException {
+		if (m < CANDIDATE_ARCS_MIN_VEHICLES) {
+			arcs = MIPArcs.create(taxiCfg, travelTimes, rData, vData);
+			buildSparseModel();
+			return;
+		}
+
+		arcs = MIPCandidateArcs.create(taxiCfg, travelTimes, rData, vData, initialSolution);
+		buildSparseModel();
+		int candidateCount = arcs.count;
+
+		for (int round = 0; verifyCandidateArcs && round < MAX_VERIFICATION_ROUNDS; round++) {
+			MIPArcs pricedArcs = addPricedOutArcs();
+			if (pricedArcs == null) {
+				break;
+			}
+
+			model.dispose();
+			model = new GRBModel(env);
+			arcs = pricedArcs;
+			buildSparseModel();
+		}
+
+		if (phaseRecord != null) {
+			long pairCount = (long)m * n + (long)n * (n - 1);
+			phaseRecord.candidateArcCount = candidateCount;
+			phaseRecord.pruningRatio = 1 - (double)arcs.count / pairCount;
+		}
+	}
+
+	/**
+	 * Solves the LP relaxation and prices out all arcs that are not in the model (but survive the exclusion
+	 * rules): rc = -(pi_in_v + pi_out_u) [+ (a_k + t_O_ki) * pi_v2r_i for v2r arcs]; the r2r constraints of the
+	 * missing arcs are not in the model, so their duals are 0.
+	 *
+	 * @return the current arcs plus those with negative reduced costs; null if none
+	 */
+	private MIPArcs addPricedOutArcs() throws GRBException {
+		GRBModel relaxed = model.relax();
+		try {
+			relaxed.optimize();
+			if (relaxed.get(GRB.IntAttr.Status) != GRB.Status.OPTIMAL) {
+				return null;
+			}
+
+			double[] pi = relaxed.get(GRB.DoubleAttr.Pi, relaxed.getConstrs());
+			double[] piIn = getDuals(pi, incomingConstr);
+			double[] piOut = getDuals(pi, outgoingConstr);
+			double[] piVehToReq = getDuals(pi, vehToReqConstr);
+
+			Set<Long> inModel = new HashSet<>();
+			MIPArcs.Builder builder = new MIPArcs.Builder(m, n);
+			for (int a = 0; a < arcs.count; a++) {
+				inModel.add(MIPCandidateArcs.arcKey(arcs.from[a], arcs.to[a]));
+				builder.add(arcs.from[a], arcs.to[a], arcs.time[a]);
+			}
+
+			// travel times are looked up only for pairs that pass the cheap screens (time windows with t = 0,
+			// reduced cost bounded over 0 <= t <= TP_MAX)
+			int pricedCount = 0;
+			for (int i = 0; i < n; i++) {
+				double l_i = rData.requests[i].getEarliestStartTime() + TW_MAX;
+				double minTimeTerm = Math.min(0, TP_MAX * piVehToReq[i]);
+				for (int k = 0; k < m; k++) {
+					double a_k = vData.getEntry(k).time;
+					if (a_k > l_i || -piIn[i] - piOut[k] + a_k * piVehToReq[i] + minTimeTerm >= -REDUCED_COST_TOLERANCE
+							|| inModel.contains(MIPCandidateArcs.arcKey(k, m + i))) {
+						continue;
+					}
+
+					double t_O_ki = travelTimes.getVehToReqTime(k, i);
+					if (!MIPArcs.doExcludeVehToReqDrive(rData, i, a_k, t_O_ki)
+							&& -piIn[i] - piOut[k] + (a_k + t_O_ki) * piVehToReq[i] < -REDUCED_COST_TOLERANCE) {
+						builder.add(k, m + i, a_k + t_O_ki);
+						pricedCount++;
+					}
+				}
+			}
+
+			// the reduced cost of r2r arcs does not depend on t_ij
+			double t_P = taxiCfg.getPickupDuration();
+			double t_D = taxiCfg.getDropoffDuration();
+			for (int i = 0; i < n; i++) {
+				double totalT_i = t_P + travelTimes.getRideTime(i) + t_D;
+				double earliestDeparture_i = rData.requests[i].getEarliestStartTime() + totalT_i;
+				for (int j = 0; j < n; j++) {
+					if (i == j || -piIn[j] - piOut[m + i] >= -REDUCED_COST_TOLERANCE
+							|| earliestDeparture_i > rData.requests[j].getEarliestStartTime() + TW_MAX
+							|| inModel.contains(MIPCandidateArcs.arcKey(m + i, m + j))) {
+						continue;
+					}
+
+					double t_ij = travelTimes.getReqToReqTime(i, j);
+					if (!MIPArcs.doExcludeReqToReqDrive(rData, i, j, totalT_i, t_ij)) {
+						builder.add(m + i, m + j, totalT_i + t_ij);
+						pricedCount++;
+					}
+				}
+			}
+
+			return pricedCount == 0 ? null : builder.build();
+		} finally {
+			relaxed.dispose();
+		}
+	}
+
+	// constraints are indexed in the same way in the relaxed model
+	private static double[] getDuals(double[] pi, GRBConstr[] constrs) throws GRBException {
+		double[] duals = new double[constrs.length];
+		for (int c = 0; c < constrs.length; c++) {
+			if (constrs[c] != null) {
+				duals[c] = pi[constrs[c].get(GRB.IntAttr.Index)];
+			}
 		}
+		return duals;
+	}
+
+	private void buildSparseModel() throws GRBException {
+		addArcVariables();
+		addWVariables();
+		model.update();
+
+		setObjective();
+
+		addSparseIncomingConstraint();
+		addSparseOutgoingConstraint();
+
+		addSparseVehToReqLinConstraint();
+		if (!lazyReqToReq) {
+			addSparseReqToReqLinConstraint();
+		}
+		model.update();
 	}
 
 	private void addXVariables() throws GRBException {
@@ -183,15 +493,11 @@ class MIPGurobiSolver {
 			GRBLinExpr expr = new GRBLinExpr();
 			expr.addTerm(1, wVar[i]);
 
-			Link toLink = rData.requests[i].getFromLink();
-
 			for (int k = 0; k < m; k++) {
-				VehicleData.Entry departure = vData.getEntry(k);
-
-				double a_k = departure.time;
-				double t_O_ki = pathTravelTimeCalc.calcTravelTime(departure.link, toLink);
+				double a_k = vData.getEntry(k).time;
+				double t_O_ki = travelTimes.getVehToReqTime(k, i);
 
-				if (doExcludeVehToReqDrive(i, a_k, t_O_ki)) {
+				if (MIPArcs.doExcludeVehToReqDrive(rData, i, a_k, t_O_ki)) {
 					GRBLinExpr excludeX = new GRBLinExpr();
 					excludeX.addTerm(1, xVar[k][m + i]);
 					model.addConstr(excludeX, GRB.EQUAL, 0, "v2r excluded " + k + "," + i);
@@ -204,38 +510,18 @@ class MIPGurobiSolver {
 		}
 	}
 
-	private boolean doExcludeVehToReqDrive(int i, double a_k, double t_O_ki) {
-		double l_i = rData.requests[i].getEarliestStartTime() + TW_MAX;
-		double earliestArrival_i = a_k + t_O_ki;
-
-		// a_k + t_O_ki > l_i ==> x[k][m+i] = 0
-		if (earliestArrival_i > l_i) {
-			return true;
-		}
-
-		// t_O_ki > MAX_TP ==> x[k][m+i] = 0
-		if (t_O_ki > TP_MAX) {
-			return true;
-		}
-
-		return false;
-	}
-
 	private void addReqToReqLinConstraint() throws GRBException {
 		double t_P = taxiCfg.getPickupDuration();
 		double t_D = taxiCfg.getDropoffDuration();
 
 		for (int i = 0; i < n; i++) {
-			TaxiRequest iReq = rData.requests[i];
-
-			double t_i = pathTravelTimeCalc.calcTravelTime(iReq.getFromLink(), iReq.getToLink());
+			double t_i = travelTimes.getRideTime(i);
 			double totalT_i = t_P + t_i + t_D;
 
 			for (int j = 0; j < n; j++) {
-				TaxiRequest jReq = rData.requests[j];
-				double t_ij = pathTravelTimeCalc.calcTravelTime(iReq.getToLink(), jReq.getFromLink());
+				double t_ij = travelTimes.getReqToReqTime(i, j);
 
-				if (doExcludeReqToReqDrive(i, j, totalT_i, t_ij)) {
+				if (MIPArcs.doExcludeReqToReqDrive(rData, i, j, totalT_i, t_ij)) {
 					GRBLinExpr excludeX = new GRBLinExpr();
 					excludeX.addTerm(1, xVar[m + i][m + j]);
 					model.addConstr(excludeX, GRB.EQUAL, 0, "r2r excluded " + i + "," + j);
@@ -251,51 +537,181 @@ class MIPGurobiSolver {
 		}
 	}
 
-	private boolean doExcludeReqToReqDrive(int i, int j, double totalT_i, double t_ij) {
-		double e_i = rData.requests[i].getEarliestStartTime();
-		double l_j = rData.requests[j].getEarliestStartTime() + TW_MAX;
-		double earliestArrival_j = e_i + totalT_i + t_ij;
-
-		// e_i + t_P + t_i + t_D + t_ij > l_j ==> x[m+i][m+j] = 0
-		if (earliestArrival_j > l_j) {
-			return true;
+	private void addArcVariables() throws GRBException {
+		double[] lb = new double[arcs.count];
+		double[] ub = new double[arcs.count];
+		double[] obj = new double[arcs.count];
+		char[] type = new char[arcs.count];
+		String[] names = new String[arcs.count];
+
+		for (int a = 0; a < arcs.count; a++) {
+			ub[a] = 1;
+			type[a] = GRB.BINARY;
+			names[a] = "x_" + arcs.from[a] + "," + arcs.to[a];
 		}
 
-		// t_ij > MAX_TP ==> x[m+i][m+j] = 0
-		if (t_ij > TP_MAX) {
-			return true;
-		}
+		// one call instead of one per variable
+		arcVar = model.addVars(lb, ub, obj, type, names);
+	}
 
-		return false;
+	private void addSparseIncomingConstraint() throws GRBException {
+		incomingConstr = new GRBConstr[n];
+		for (int i = 0; i < n; i++) {
+			GRBLinExpr expr = new GRBLinExpr();
+
+			for (int a : arcs.incoming[i]) {
+				expr.addTerm(1, arcVar[a]);
+			}
+
+			incomingConstr[i] = model.addConstr(expr, GRB.EQUAL, 1, "incoming: x_u," + (m + i));
+		}
 	}
 
-	private void applyInitialSolution(MIPSolution initialSolution) throws GRBException {
+	private void addSparseOutgoingConstraint() throws GRBException {
+		outgoingConstr = new GRBConstr[m + n];
 		for (int u = 0; u < m + n; u++) {
-			for (int v = 0; v < m + n; v++) {
-				double x_uv = initialSolution.x[u][v] ? 1 : 0;
-				xVar[u][v].set(GRB.DoubleAttr.Start, x_uv);
+			if (arcs.outgoing[u].length == 0) {
+				continue;// chain always ends at u
+			}
+
+			GRBLinExpr expr = new GRBLinExpr();
+
+			for (int a : arcs.outgoing[u]) {
+				expr.addTerm(1, arcVar[a]);
 			}
+
+			// chains end at their last node (no explicit arcs back to the depots)
+			outgoingConstr[u] = model.addConstr(expr, GRB.LESS_EQUAL, 1, "outgoing: x_" + u + ",v");
 		}
+	}
 
+	private void addSparseVehToReqLinConstraint() throws GRBException {
+		vehToReqConstr = new GRBConstr[n];
 		for (int i = 0; i < n; i++) {
-			wVar[i].set(GRB.DoubleAttr.Start, initialSolution.w[i]);
+			GRBLinExpr expr = new GRBLinExpr();
+			expr.addTerm(1, wVar[i]);
+
+			for (int a : arcs.incoming[i]) {
+				if (arcs.isVehToReq(a)) {
+					expr.addTerm(-arcs.time[a], arcVar[a]);// a_k + t_O_ki
+				}
+			}
+
+			vehToReqConstr[i] = model.addConstr(expr, GRB.GREATER_EQUAL, 0, "w(v2r)_" + i);
 		}
 	}
 
+	private void addSparseReqToReqLinConstraint() throws GRBException {
+		for (int a = 0; a < arcs.count; a++) {
+			if (arcs.isVehToReq(a)) {
+				continue;
+			}
+
+			int i = arcs.from[a] - m;
+			int j = arcs.to[a] - m;
+			model.addConstr(createSparseReqToReqExpr(a), GRB.GREATER_EQUAL, 0, "w(r2r)_" + i + "," + j);
+		}
+	}
+
+	// w_j - w_i + W_MAX - (t_P + t_i + t_D + t_ij + W_MAX) * x_ij >= 0
+	private GRBLinExpr createSparseReqToReqExpr(int a) {
+		GRBLinExpr expr = new GRBLinExpr();
+		expr.addTerm(1, wVar[arcs.to[a] - m]);
+		expr.addTerm(-1, wVar[arcs.from[a] - m]);
+		expr.addConstant(W_MAX);
+		expr.addTerm(-arcs.time[a] - W_MAX, arcVar[a]);// t_P + t_i + t_D + t_ij
+		return expr;
+	}
+
+	// values: as in getAllVariables()
+	private int addViolatedReqToReqConstraints(MIPGurobiCallback callback, double[] values) throws GRBException {
+		int wOffset = arcs.count;
+		int added = 0;
+		for (int a = 0; a < arcs.count; a++) {
+			if (arcs.isVehToReq(a)) {
+				continue;
+			}
+
+			double w_i = values[wOffset + arcs.from[a] - m];
+			double w_j = values[wOffset + arcs.to[a] - m];
+			double slack = w_j - w_i + W_MAX - (arcs.time[a] + W_MAX) * values[a];
+			if (slack < -LAZY_VIOLATION_TOLERANCE) {
+				callback.addLazyConstraint(createSparseReqToReqExpr(a), GRB.GREATER_EQUAL, 0);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	private void applyInitialSolution(MIPSolution initialSolution) throws GRBException {
+		if (sparse) {
+			model.set(GRB.DoubleAttr.Start, arcVar, arcs.toXValues(initialSolution));
+		} else {
+			// the last node of each chain goes back to the depot (its vehicle)
+			int[] depot = new int[m + n];
+			Arrays.fill(depot, -1);
+			for (int k = 0; k < m; k++) {
+				int u = k;
+				while (initialSolution.successor[u] != MIPSolution.NO_SUCCESSOR) {
+					u = initialSolution.successor[u];
+				}
+				depot[u] = k;
+			}
+
+			// row by row (at most one 1 per row), instead of a dense (m+n) x (m+n) matrix
+			double[] row = new double[m + n];
+			for (int u = 0; u < m + n; u++) {
+				int v = initialSolution.successor[u] != MIPSolution.NO_SUCCESSOR ? initialSolution.successor[u]
+						: depot[u];
+				if (v >= 0) {
+					row[v] = 1;
+				}
+				model.set(GRB.DoubleAttr.Start, xVar[u], row);
+				if (v >= 0) {
+					row[v] = 0;
+				}
+			}
+		}
+
+		model.set(GRB.DoubleAttr.Start, wVar, initialSolution.w);
+	}
+
 	private MIPSolution extractSolution() throws GRBException {
-		boolean[][] x = new boolean[m + n][m + n];
-		for (int u = 0; u < m + n; u++) {
-			for (int v = 0; v < m + n; v++) {
-				double x_uv = xVar[u][v].get(GRB.DoubleAttr.X);
-				x[u][v] = x_uv >= 0.5;
+		return toSolution(model.get(GRB.DoubleAttr.X, getAllVariables()));// one call instead of one per variable
+	}
+
+	// x variables (arcs or the flattened x matrix), then w variables
+	private GRBVar[] getAllVariables() {
+		int xCount = sparse ? arcs.count : (m + n) * (m + n);
+		GRBVar[] vars = new GRBVar[xCount + n];
+		if (sparse) {
+			System.arraycopy(arcVar, 0, vars, 0, xCount);
+		} else {
+			for (int u = 0; u < m + n; u++) {
+				System.arraycopy(xVar[u], 0, vars, u * (m + n), m + n);
 			}
 		}
+		System.arraycopy(wVar, 0, vars, xCount, n);
+		return vars;
+	}
 
-		double[] w = new double[n];
-		for (int i = 0; i < n; i++) {
-			w[i] = wVar[i].get(GRB.DoubleAttr.X);
+	private MIPSolution toSolution(double[] values) {
+		int xCount = values.length - n;
+		double[] w = Arrays.copyOfRange(values, xCount, values.length);
+
+		if (sparse) {
+			return new MIPSolution(arcs.toSuccessors(Arrays.copyOf(values, xCount)), w);
 		}
 
-		return new MIPSolution(x, w);
+		int[] successor = MIPSolution.createEmptySuccessors(m + n);
+		for (int u = 0; u < m + n; u++) {
+			for (int v = m; v < m + n; v++) {// arcs back to the depots are implicit
+				if (values[u * (m + n) + v] >= 0.5) {
+					successor[u] = v;
+					break;
+				}
+			}
+		}
+		return new MIPSolution(successor, w);
 	}
 }
@@ -0,0 +1,139 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the planning horizon of each optimization (online modes), trading the plan quality against the solve
+ * latency as the load changes over the day. The horizon is min(m * reqsPerVeh, nCap), where reqsPerVeh starts at
+ * that of {@link MIPProblem#MODE}.
+ * <p>
+ * After each optimization, the LATENCY_PERCENTILE of the recent solve times is compared with LATENCY_TARGET:
+ * <ul>
+ * <li>too slow, or the solver stopped with a gap above MAX_GAP: reqsPerVeh is decreased; at MIN_REQS_PER_VEH, nCap
+ * is cut to DECREASE_FACTOR * n (n of the last instance)</li>
+ * <li>below half the target, while the backlog did not fit into the horizon: nCap is raised by INCREASE_FACTOR
+ * (and dropped once no longer binding); without nCap, reqsPerVeh is increased</li>
+ * </ul>
+ * The window is cleared after each change, so that decisions are based on the current horizon only; growing
+ * requires MIN_OBSERVATIONS.
+ *
+ * @author michalm
+ */
+class MIPHorizonController {
+	static final double LATENCY_TARGET = 5;// [s] wall-clock
+	static final double LATENCY_PERCENTILE = 0.9;
+	static final double MAX_GAP = 0.05;
+
+	static final int MIN_REQS_PER_VEH = 1;
+	static final int MAX_REQS_PER_VEH = 5;
+	static final int MIN_N_CAP = 10;
+	static final double DECREASE_FACTOR = 0.7;
+	static final double INCREASE_FACTOR = 1.25;
+
+	private static final int WINDOW = 20;// recent optimizations
+	private static final int MIN_OBSERVATIONS = 5;
+	private static final int NO_CAP = Integer.MAX_VALUE;
+
+	private final double[] latencies = new double[WINDOW];// cyclic
+	private int observationCount = 0;
+	private int nextObservation = 0;
+
+	private int reqsPerVeh;
+	private int nCap = NO_CAP;
+
+	private int lastVehicleCount;
+	private int lastHorizon;
+	private double lastPercentile = Double.NaN;
+
+	MIPHorizonController(int initialReqsPerVeh) {
+		reqsPerVeh = Math.max(MIN_REQS_PER_VEH, Math.min(initialReqsPerVeh, MAX_REQS_PER_VEH));
+	}
+
+	int getReqsPerVeh() {
+		return reqsPerVeh;
+	}
+
+	int getPlanningHorizon(int vehicleCount) {
+		lastVehicleCount = vehicleCount;
+		lastHorizon = (int)Math.min((long)vehicleCount * reqsPerVeh, nCap);
+		return lastHorizon;
+	}
+
+	/**
+	 * @param latency
+	 *            wall-clock solve time [s]
+	 * @param gap
+	 *            relative MIP gap at termination; NaN if not applicable (heuristic or exact solvers)
+	 * @param backlog
+	 *            unplanned requests at the time of optimization
+	 */
+	void optimizationCompleted(int n, double latency, double gap, int backlog) {
+		latencies[nextObservation] = latency;
+		nextObservation = (nextObservation + 1) % WINDOW;
+		observationCount = Math.min(observationCount + 1, WINDOW);
+
+		lastPercentile = calcPercentile();
+		boolean converged = Double.isNaN(gap) || gap <= MAX_GAP;
+
+		if (lastPercentile > LATENCY_TARGET || !converged) {
+			if (reqsPerVeh > MIN_REQS_PER_VEH) {
+				reqsPerVeh--;
+			} else {
+				nCap = Math.max(MIN_N_CAP, (int)(DECREASE_FACTOR * n));
+			}
+			clearWindow();
+		} else if (lastPercentile < LATENCY_TARGET / 2 && backlog > lastHorizon
+				&& observationCount >= MIN_OBSERVATIONS) {
+			if (nCap != NO_CAP) {
+				nCap = (int)Math.ceil(INCREASE_FACTOR * nCap);
+				if (nCap >= (long)lastVehicleCount * reqsPerVeh) {
+					nCap = NO_CAP;
+				}
+			} else if (reqsPerVeh < MAX_REQS_PER_VEH) {
+				reqsPerVeh++;
+			} else {
+				return;
+			}
+			clearWindow();
+		}
+	}
+
+	private double calcPercentile() {
+		double[] sorted = Arrays.copyOf(latencies, observationCount);
+		Arrays.sort(sorted);
+		int idx = (int)Math.ceil(LATENCY_PERCENTILE * observationCount) - 1;
+		return sorted[Math.max(idx, 0)];
+	}
+
+	private void clearWindow() {
+		observationCount = 0;
+		nextObservation = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "horizon=" + lastHorizon + " (reqsPerVeh=" + reqsPerVeh + ", nCap="
+				+ (nCap == NO_CAP ? "-" : nCap + "") + "); latency p" + (int)(100 * LATENCY_PERCENTILE) + "="
+				+ lastPercentile;
+	}
+}
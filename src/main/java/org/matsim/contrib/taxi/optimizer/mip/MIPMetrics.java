@@ -0,0 +1,219 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.matsim.contrib.taxi.optimizer.mip.MIPPhaseRecord.Phase;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Phase-level latency metrics of all optimizations of a run: each {@link MIPPhaseRecord} is appended to a CSV file
+ * and added to per-phase histograms (log2 buckets of milliseconds), which are exposed through JMX (see
+ * {@link MIPMetricsMXBean}), one MBean per instance (e.g. several optimizers or runs in one JVM).
+ *
+ * @author michalm
+ */
+class MIPMetrics implements MIPMetricsMXBean {
+	static final String CSV_FILE = "MIP_phases.csv";
+	private static final String OBJECT_NAME = "org.matsim.contrib.taxi.optimizer.mip:type=MIPMetrics,instance=";
+	private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+	private static final int BUCKETS = 24;// [0, 1), [1, 2), [2, 4), ... [2^22, inf) ms
+
+	private final long[][] histograms = new long[Phase.values().length][BUCKETS];
+	private final double[] totalMillis = new double[Phase.values().length];
+	private long count = 0;
+	private MIPPhaseRecord last;
+
+	private final BufferedWriter csvWriter;
+	private final ObjectName objectName;
+
+	MIPMetrics(String csvFile) {
+		csvWriter = IOUtils.getBufferedWriter(csvFile);
+		writeCsvLine(createCsvHeader());
+
+		try {
+			objectName = new ObjectName(OBJECT_NAME + INSTANCE_COUNTER.getAndIncrement());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	synchronized void add(MIPPhaseRecord record) {
+		for (Phase phase : Phase.values()) {
+			double millis = record.getPhaseMillis(phase);
+			totalMillis[phase.ordinal()] += millis;
+			histograms[phase.ordinal()][getBucket(millis)]++;
+		}
+		count++;
+		last = record;
+
+		writeCsvLine(createCsvLine(record));
+	}
+
+	void close() {
+		try {
+			csvWriter.close();
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (IOException | JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int getBucket(double millis) {
+		int bucket = 0;
+		for (double upper = 1; millis >= upper && bucket < BUCKETS - 1; upper *= 2) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	private String createCsvHeader() {
+		StringBuilder sb = new StringBuilder(
+				"time;m;n;horizon;arcs;candidateArcs;pruningRatio;constraints;status;gap;nodes");
+		for (Phase phase : Phase.values()) {
+			sb.append(';').append(phase.name()).append("_ms");
+		}
+		return sb.toString();
+	}
+
+	private String createCsvLine(MIPPhaseRecord r) {
+		StringBuilder sb = new StringBuilder().append(r.time).append(';').append(r.vehicleCount).append(';')
+				.append(r.requestCount).append(';').append(r.planningHorizon).append(';').append(r.arcCount)
+				.append(';').append(r.candidateArcCount).append(';').append(r.pruningRatio).append(';')
+				.append(r.constraintCount).append(';').append(r.status).append(';').append(r.gap)
+				.append(';').append(r.nodeCount);
+		for (Phase phase : Phase.values()) {
+			sb.append(';').append(r.getPhaseMillis(phase));
+		}
+		return sb.toString();
+	}
+
+	private void writeCsvLine(String line) {
+		try {
+			csvWriter.write(line);
+			csvWriter.newLine();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public synchronized long getOptimizationCount() {
+		return count;
+	}
+
+	@Override
+	public synchronized Map<String, Double> getLastPhaseMillis() {
+		return toPhaseMap(phase -> last == null ? Double.NaN : last.getPhaseMillis(phase));
+	}
+
+	@Override
+	public synchronized Map<String, Double> getMeanPhaseMillis() {
+		return toPhaseMap(phase -> totalMillis[phase.ordinal()] / count);
+	}
+
+	// upper bound of the bucket
+	@Override
+	public synchronized Map<String, Double> getP95PhaseMillis() {
+		return toPhaseMap(phase -> {
+			long[] histogram = histograms[phase.ordinal()];
+			long cumulative = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				cumulative += histogram[b];
+				if (cumulative >= 0.95 * count) {
+					return b < BUCKETS - 1 ? Math.pow(2, b) : Double.POSITIVE_INFINITY;
+				}
+			}
+			return Double.NaN;// no records
+		});
+	}
+
+	private static Map<String, Double> toPhaseMap(ToDoubleFunction<Phase> millis) {
+		Map<String, Double> map = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			map.put(phase.name(), millis.applyAsDouble(phase));
+		}
+		return map;
+	}
+
+	@Override
+	public synchronized int getLastVehicleCount() {
+		return last == null ? 0 : last.vehicleCount;
+	}
+
+	@Override
+	public synchronized int getLastRequestCount() {
+		return last == null ? 0 : last.requestCount;
+	}
+
+	@Override
+	public synchronized int getLastPlanningHorizon() {
+		return last == null ? 0 : last.planningHorizon;
+	}
+
+	@Override
+	public synchronized int getLastArcCount() {
+		return last == null ? -1 : last.arcCount;
+	}
+
+	@Override
+	public synchronized int getLastCandidateArcCount() {
+		return last == null ? -1 : last.candidateArcCount;
+	}
+
+	@Override
+	public synchronized double getLastPruningRatio() {
+		return last == null ? Double.NaN : last.pruningRatio;
+	}
+
+	@Override
+	public synchronized int getLastConstraintCount() {
+		return last == null ? -1 : last.constraintCount;
+	}
+
+	@Override
+	public synchronized int getLastStatus() {
+		return last == null ? -1 : last.status;
+	}
+
+	@Override
+	public synchronized double getLastGap() {
+		return last == null ? Double.NaN : last.gap;
+	}
+
+	@Override
+	public synchronized double getLastNodeCount() {
+		return last == null ? Double.NaN : last.nodeCount;
+	}
+}
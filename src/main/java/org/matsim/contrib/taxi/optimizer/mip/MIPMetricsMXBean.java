@@ -0,0 +1,58 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link MIPMetrics}; phase times in milliseconds, keyed by {@link MIPPhaseRecord.Phase} names.
+ *
+ * @author michalm
+ */
+public interface MIPMetricsMXBean {
+	long getOptimizationCount();
+
+	Map<String, Double> getLastPhaseMillis();
+
+	Map<String, Double> getMeanPhaseMillis();
+
+	Map<String, Double> getP95PhaseMillis();
+
+	int getLastVehicleCount();
+
+	int getLastRequestCount();
+
+	int getLastPlanningHorizon();
+
+	int getLastArcCount();
+
+	int getLastCandidateArcCount();
+
+	double getLastPruningRatio();
+
+	int getLastConstraintCount();
+
+	int getLastStatus();
+
+	double getLastGap();
+
+	double getLastNodeCount();
+}
@@ -0,0 +1,69 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+/**
+ * Wall-clock times of the phases of a single optimization, together with the problem size and the solver outcome
+ * (see {@link MIPMetrics}). Filled by the solving thread, read by the mobsim thread once the solution has been
+ * applied.
+ *
+ * @author michalm
+ */
+class MIPPhaseRecord {
+	enum Phase {
+		INIT_DATA, // vehicle and request data, binding to the travel time cache
+		TRAVEL_TIMES, // moving the trees to the current time, prefetching (tree builds)
+		INITIAL_SOLUTION, //
+		SOLVE, // the whole solving phase (any solver)
+		MODEL_BUILD, // Gurobi only (incl. the MIP start)
+		OPTIMIZE, // Gurobi only
+		EXTRACTION, // Gurobi only
+		SCHEDULE_UPDATE;// MIPSolutionScheduler
+	}
+
+	final double time;// simulated
+	final long[] phaseNanos = new long[Phase.values().length];
+
+	int vehicleCount;// m
+	int requestCount;// n
+	int planningHorizon;
+
+	// Gurobi only (otherwise -1/NaN)
+	int arcCount = -1;// x variables
+	int candidateArcCount = -1;// before re-adding priced-out arcs; candidate arcs (large fleets) only
+	double pruningRatio = Double.NaN;// arcs not in the model / all pairs; candidate arcs only
+	int constraintCount = -1;
+	int status = -1;// GRB.Status
+	double gap = Double.NaN;
+	double nodeCount = Double.NaN;
+
+	MIPPhaseRecord(double time) {
+		this.time = time;
+	}
+
+	void addPhaseTime(Phase phase, long startNanos) {
+		phaseNanos[phase.ordinal()] += System.nanoTime() - startNanos;
+	}
+
+	double getPhaseMillis(Phase phase) {
+		return phaseNanos[phase.ordinal()] / 1e6;
+	}
+}
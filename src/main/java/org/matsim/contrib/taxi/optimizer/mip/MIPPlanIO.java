@@ -0,0 +1,136 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+
+/**
+ * Binary plan format (big-endian):
+ * <ul>
+ * <li>header: MAGIC, VERSION, m, n, instance fingerprint (hash of the vehicle and request ids in index order)</li>
+ * <li>arc count, then (u, successor[u]) for each node with a successor</li>
+ * <li>w[i] for each request</li>
+ * </ul>
+ * Only the used arcs are stored (instead of all (m+n)^2 x values of a Gurobi .sol file). Plans are written as a
+ * stream and read through a memory-mapped buffer; the fingerprint guards against loading the plan of another
+ * instance.
+ *
+ * @author michalm
+ */
+class MIPPlanIO {
+	private static final int MAGIC = 0x4D495050;// "MIPP"
+	private static final int VERSION = 1;
+
+	static void write(String file, MIPRequestData rData, VehicleData vData, MIPSolution solution) {
+		int m = vData.getSize();
+		int n = rData.dimension;
+
+		int arcCount = 0;
+		for (int u = 0; u < m + n; u++) {
+			if (solution.successor[u] != MIPSolution.NO_SUCCESSOR) {
+				arcCount++;
+			}
+		}
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(m);
+			out.writeInt(n);
+			out.writeLong(calcFingerprint(rData, vData));
+
+			out.writeInt(arcCount);
+			for (int u = 0; u < m + n; u++) {
+				if (solution.successor[u] != MIPSolution.NO_SUCCESSOR) {
+					out.writeInt(u);
+					out.writeInt(solution.successor[u]);
+				}
+			}
+
+			for (int i = 0; i < n; i++) {
+				out.writeDouble(solution.w[i]);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static MIPSolution read(String file, MIPRequestData rData, VehicleData vData) {
+		int m = vData.getSize();
+		int n = rData.dimension;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new RuntimeException("Not a plan file (or unsupported version): " + file);
+			}
+			if (buffer.getInt() != m || buffer.getInt() != n || buffer.getLong() != calcFingerprint(rData, vData)) {
+				throw new RuntimeException("Plan of another instance: " + file);
+			}
+
+			int[] successor = MIPSolution.createEmptySuccessors(m + n);
+			int arcCount = buffer.getInt();
+			for (int a = 0; a < arcCount; a++) {
+				int u = buffer.getInt();
+				successor[u] = buffer.getInt();
+			}
+
+			double[] w = new double[n];
+			buffer.asDoubleBuffer().get(w);
+
+			return new MIPSolution(successor, w);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// 64-bit FNV-1a over m, n and the ids
+	private static long calcFingerprint(MIPRequestData rData, VehicleData vData) {
+		long hash = 0xcbf29ce484222325L;
+		hash = hash(hash, vData.getSize() + "/" + rData.dimension);
+		for (int k = 0; k < vData.getSize(); k++) {
+			hash = hash(hash, vData.getEntry(k).vehicle.getId().toString());
+		}
+		for (int i = 0; i < rData.dimension; i++) {
+			hash = hash(hash, rData.requests[i].getId().toString());
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, String s) {
+		for (int c = 0; c < s.length(); c++) {
+			hash = (hash ^ s.charAt(c)) * 0x100000001b3L;
+		}
+		return (hash ^ ';') * 0x100000001b3L;// separator
+	}
+}
@@ -19,33 +19,54 @@
 
 package org.matsim.contrib.taxi.optimizer.mip;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.contrib.dvrp.data.Fleet;
+import org.matsim.contrib.dvrp.data.Request;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.dvrp.util.LinkTimePair;
 import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.data.TaxiRequest.TaxiRequestStatus;
 import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPPhaseRecord.Phase;
 import org.matsim.contrib.taxi.run.TaxiConfigGroup;
 import org.matsim.contrib.taxi.scheduler.TaxiScheduler;
 import org.matsim.core.mobsim.framework.MobsimTimer;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
-import org.matsim.core.utils.io.IOUtils;
 
 public class MIPProblem {
+	/**
+	 * Each vehicle k starts a chain k -> m+i -> m+j -> ... of requests. Instead of the (m+n)x(m+n) x matrix, only
+	 * the successor of each node is stored (x[u][successor[u]] == 1); the arcs closing the chains (back to the
+	 * depots) are implicit.
+	 */
 	static class MIPSolution {
-		final boolean[][] x;
-		final double[] w;
+		static final int NO_SUCCESSOR = -1;// end of chain
 
-		MIPSolution(boolean[][] x, double[] w) {
-			this.x = x;
+		final int[] successor;// for each node, u (vehicle k or request m+i)
+		final double[] w;// for each request, i
+
+		MIPSolution(int[] successor, double[] w) {
+			this.successor = successor;
 			this.w = w;
 		}
+
+		static int[] createEmptySuccessors(int nodeCount) {
+			int[] successor = new int[nodeCount];
+			Arrays.fill(successor, NO_SUCCESSOR);
+			return successor;
+		}
 	};
 
 	enum Mode {
@@ -63,7 +84,7 @@ public class MIPProblem {
 		private final boolean init;
 		private final boolean optim;
 		private final boolean load;
-		private final int reqsPerVeh;// planning horizon
+		final int reqsPerVeh;// planning horizon
 
 		private Mode(boolean init, boolean optim, boolean load, int reqsPerVeh) {
 			this.init = init;
@@ -80,22 +101,82 @@ public class MIPProblem {
 	private final TravelTime travelTime;
 	private final TravelDisutility travelDisutility;
 	private final TaxiScheduler scheduler;
-	private final PathTreeBasedTravelTimeCalculator pathTravelTimeCalc;
+	private final MIPTravelTimeCache travelTimeCache;
+	private final MIPGurobiPersistentSolver persistentSolver;// null if !PERSISTENT_MODEL
+	private final MIPHorizonController horizonController;// null if !ADAPTIVE_HORIZON
+	private final MIPWarmStart warmStart;// null if !WARM_START
 
 	private SortedSet<TaxiRequest> unplannedRequests;
 	private MIPRequestData rData;
 	private VehicleData vData;
+	private MIPTravelTimes travelTimes;
+	private MIPZoneDecomposition zoneDecomposition;// ZONE_DECOMPOSITION only
 
 	private MIPSolution initialSolution;
 	private MIPSolution finalSolution;
+	private boolean detached;
+
+	private volatile MIPGurobiSolver polishingSolver;// BACKGROUND_POLISHING only
+	private volatile MIPSolution polishedSolution;// BACKGROUND_POLISHING only; not applied yet
+
+	private int reqsPerVeh;
+	private int planningHorizon;
+	private int backlog;// unplanned requests at the time of preparation
+	private boolean solved;
+	private double solveTime;// [s] wall-clock
+	private double gap = Double.NaN;// MIPGurobiSolver only
+	private MIPPhaseRecord phaseRecord;
 
 	// static final Mode MODE = Mode.OFFLINE_INIT_OPTIM;
 	static final Mode MODE = Mode.ONLINE_1;
+
+	// true: one Gurobi model updated incrementally across consecutive optimizations (MIPGurobiPersistentSolver)
+	static final boolean PERSISTENT_MODEL = false;
+
+	// true: ONLINE_1 solved as an assignment problem (MIPAssignmentSolver), without Gurobi
+	// (the initial/warm-start solution is then not used)
+	static final boolean ASSIGNMENT_FOR_ONLINE_1 = false;
+
+	enum AlnsUsage {
+		NONE, // Gurobi only
+		START, // MIPAlnsSolver improves the initial solution passed to Gurobi as the MIP start
+		SOLVER;// MIPAlnsSolver instead of Gurobi
+	}
+
+	static final AlnsUsage ALNS_USAGE = AlnsUsage.NONE;
+	private static final double ALNS_START_BUDGET_SHARE = 0.25;// of LATENCY_BUDGET; Gurobi gets the rest
+
+	// wall-clock budget [s] for MIPGurobiSolver (incl. building the model) and MIPAlnsSolver; Double.NaN: only the
+	// time limit of the Gurobi profile (60 s in ONLINE) and the default budget of MIPAlnsSolver
+	static final double LATENCY_BUDGET = Double.NaN;
+
+	// true: vehicles and requests are split into spatial zones solved in parallel (MIPZoneDecomposition)
+	static final boolean ZONE_DECOMPOSITION = false;
+	static final boolean ZONE_BOUNDARY_REPAIR = true;
+
+	// true: MIPRequestInserter solves in the background while the simulation keeps running, and the solution is
+	// applied at the beginning of a later time step
+	static final boolean ASYNC = false;
+	private static final double DEPARTURE_TIME_TOLERANCE = 60;// [s] delays of vehicles while solving
+
+	// true: once LATENCY_BUDGET has run out, Gurobi keeps improving the solution in the background (for at most
+	// MIPGurobiSolver.POLISHING_TIME_LIMIT); the latest improvement replaces the applied solution
+	static final boolean BACKGROUND_POLISHING = false;
+
+	// true: the planning horizon is chosen per optimization (MIPHorizonController) instead of MODE.reqsPerVeh;
+	// online modes only
+	static final boolean ADAPTIVE_HORIZON = false;
+
+	// true: the initial solution starts from the chains of the previous solution (MIPWarmStart); new requests are
+	// inserted by MIPSolutionFinder
+	static final boolean WARM_START = false;
 	private final String workingDirectory = "";
+	static final String PLAN_FILE = "mip_plan.bin";// see MIPPlanIO
 
 	public MIPProblem(TaxiConfigGroup taxiCfg, Fleet fleet, TaxiScheduler scheduler, Network network, MobsimTimer timer,
-			TravelTime travelTime, TravelDisutility travelDisutility,
-			PathTreeBasedTravelTimeCalculator pathTravelTimeCalc) {
+			TravelTime travelTime, TravelDisutility travelDisutility, MIPTravelTimeCache travelTimeCache,
+			MIPGurobiPersistentSolver persistentSolver, MIPHorizonController horizonController,
+			MIPWarmStart warmStart) {
 		this.taxiCfg = taxiCfg;
 		this.fleet = fleet;
 		this.scheduler = scheduler;
@@ -103,120 +184,344 @@ public class MIPProblem {
 		this.timer = timer;
 		this.travelTime = travelTime;
 		this.travelDisutility = travelDisutility;
-		this.pathTravelTimeCalc = pathTravelTimeCalc;
+		this.travelTimeCache = travelTimeCache;
+		this.persistentSolver = persistentSolver;
+		this.horizonController = horizonController;
+		this.warmStart = warmStart;
 	}
 
 	public void scheduleUnplannedRequests(SortedSet<TaxiRequest> unplannedRequests) {
+		if (!prepare(unplannedRequests, false)) {
+			return;
+		}
+
+		solve();
+		applySolution();
+	}
+
+	/**
+	 * Mobsim thread: takes a snapshot of the vehicles and requests, and finds the initial solution.
+	 *
+	 * @param detached
+	 *            if true, {@link #solve()} may be run by another thread (while the simulation keeps running); then
+	 *            the travel times are detached from the cache, and {@link #applySolution()} checks the solution
+	 *            against the current state of the vehicles
+	 * @return false if there is nothing to be scheduled
+	 */
+	boolean prepare(SortedSet<TaxiRequest> unplannedRequests, boolean detached) {
 		this.unplannedRequests = unplannedRequests;
+		this.detached = detached;
+		backlog = unplannedRequests.size();
+		phaseRecord = new MIPPhaseRecord(timer.getTimeOfDay());
 
 		if (!initDataAndCheckIfSchedulingRequired()) {
-			return;
+			return false;
+		}
+
+		if (detached) {
+			long detachStartNanos = System.nanoTime();
+			travelTimes = travelTimes.detach();
+			phaseRecord.addPhaseTime(Phase.TRAVEL_TIMES, detachStartNanos);
+		}
+
+		if (ZONE_DECOMPOSITION) {
+			zoneDecomposition = new MIPZoneDecomposition(taxiCfg, scheduler, timer.getTimeOfDay(), travelTimes, rData,
+					vData);
 		}
 
 		if (MODE.init) {
+			long initialStartNanos = System.nanoTime();
 			findInitialSolution();
+			phaseRecord.addPhaseTime(Phase.INITIAL_SOLUTION, initialStartNanos);
 		}
 
+		return true;
+	}
+
+	/**
+	 * Any thread: uses only the snapshot taken by {@link #prepare(SortedSet, boolean)}.
+	 */
+	void solve() {
+		long startNanos = System.nanoTime();
 		if (MODE.optim) {
 			solveProblem();
 		} else if (MODE.load) {
-			loadSolution(workingDirectory + "gurobi_solution.sol");
+			finalSolution = MIPPlanIO.read(workingDirectory + PLAN_FILE, rData, vData);
 		} else if (MODE.init) {
 			finalSolution = initialSolution;
 		} else {
 			throw new RuntimeException();
 		}
+		solveTime = (System.nanoTime() - startNanos) / 1e9;
+		phaseRecord.addPhaseTime(Phase.SOLVE, startNanos);
+		solved = true;
+	}
+
+	/**
+	 * Mobsim thread: updates the schedules.
+	 */
+	void applySolution() {
+		if (detached) {
+			dropOutdatedChains();
+		}
 
 		scheduleSolution();
 	}
 
 	private boolean initDataAndCheckIfSchedulingRequired() {
+		long startNanos = System.nanoTime();
 		vData = new VehicleData(timer.getTimeOfDay(), scheduler, fleet.getVehicles().values().stream());
 		if (vData.getSize() == 0) {
 			return false;
 		}
 
-		rData = new MIPRequestData(unplannedRequests, getPlanningHorizon());
-		return rData.dimension > 0;
-	}
+		if (horizonController != null) {
+			planningHorizon = horizonController.getPlanningHorizon(vData.getSize());
+			reqsPerVeh = horizonController.getReqsPerVeh();
+		} else {
+			planningHorizon = vData.getSize() * MODE.reqsPerVeh;
+			reqsPerVeh = MODE.reqsPerVeh;
+		}
 
-	private MIPTaxiStats stats;
+		rData = new MIPRequestData(unplannedRequests, planningHorizon);
+		if (rData.dimension == 0) {
+			return false;
+		}
 
-	private void findInitialSolution() {
-		initialSolution = new MIPSolutionFinder(taxiCfg, fleet, scheduler, network, timer, travelTime, travelDisutility,
-				rData, vData).findInitialSolution();
+		phaseRecord.vehicleCount = vData.getSize();
+		phaseRecord.requestCount = rData.dimension;
+		phaseRecord.planningHorizon = planningHorizon;
+		phaseRecord.addPhaseTime(Phase.INIT_DATA, startNanos);
 
-		stats = new MIPTaxiStats(fleet);
-		stats.calcInitial();
+		long travelTimesStartNanos = System.nanoTime();
+		travelTimeCache.updateTime(timer.getTimeOfDay());
+		phaseRecord.addPhaseTime(Phase.TRAVEL_TIMES, travelTimesStartNanos);
 
-		scheduler.removeAwaitingRequestsFromAllSchedules();
+		long bindStartNanos = System.nanoTime();
+		travelTimeCache.retainRequests(unplannedRequests);
+		travelTimes = travelTimeCache.bind(rData, vData);
+		phaseRecord.addPhaseTime(Phase.INIT_DATA, bindStartNanos);
+
+		long prefetchStartNanos = System.nanoTime();
+		travelTimeCache.prefetch(rData, vData);
+		phaseRecord.addPhaseTime(Phase.TRAVEL_TIMES, prefetchStartNanos);
+		return true;
 	}
 
-	private void solveProblem() {
-		finalSolution = new MIPGurobiSolver(taxiCfg, pathTravelTimeCalc, rData, vData).solve(initialSolution);
+	private void findInitialSolution() {
+		MIPSolutionFinder finder = new MIPSolutionFinder(taxiCfg, travelTimes, rData, vData);
+		initialSolution = warmStart != null ? finder.findInitialSolution(warmStart.remapChains(rData, vData))
+				: finder.findInitialSolution();
 	}
 
-	private void scheduleSolution() {
-		new MIPSolutionScheduler(scheduler, network, travelTime, travelDisutility, rData, vData)
-				.updateSchedules(finalSolution);
-		unplannedRequests.removeAll(Arrays.asList(rData.requests));
+	private void solveProblem() {
+		if (reqsPerVeh == 1 && ASSIGNMENT_FOR_ONLINE_1) {
+			finalSolution = new MIPAssignmentSolver(travelTimes, rData, vData).solve();
+			return;
+		}
 
-		stats.calcSolved();
+		if (ZONE_DECOMPOSITION) {
+			finalSolution = zoneDecomposition.solve(initialSolution, ZONE_BOUNDARY_REPAIR);
+			return;
+		}
 
-		PrintWriter pw = new PrintWriter(IOUtils.getBufferedWriter(workingDirectory + "MIP_stats"));
-		stats.print(pw);
-		pw.close();
-	}
+		double gurobiBudget = LATENCY_BUDGET;// NaN stays NaN
+		if (ALNS_USAGE != AlnsUsage.NONE) {
+			long alnsStartNanos = System.nanoTime();
+			double alnsBudget = ALNS_USAGE == AlnsUsage.SOLVER ? LATENCY_BUDGET
+					: ALNS_START_BUDGET_SHARE * LATENCY_BUDGET;
+			MIPSolution alnsSolution = new MIPAlnsSolver(taxiCfg, travelTimes, rData, vData).solve(initialSolution,
+					alnsBudget);
+			if (ALNS_USAGE == AlnsUsage.SOLVER) {
+				finalSolution = alnsSolution;
+				return;
+			}
+			initialSolution = alnsSolution;
+			gurobiBudget = Math.max(0, LATENCY_BUDGET - (System.nanoTime() - alnsStartNanos) / 1e9);
+		}
 
-	private void loadSolution(String file) {
-		try (Scanner s = new Scanner(new File(file))) {
-			// header
-			if (!s.nextLine().startsWith("# Objective value = ")) {
-				throw new RuntimeException();
+		if (PERSISTENT_MODEL) {
+			finalSolution = persistentSolver.solve(rData, vData, travelTimes, initialSolution);
+		} else {
+			MIPGurobiSolver solver = new MIPGurobiSolver(taxiCfg, travelTimes, rData, vData);
+			solver.setPhaseRecord(phaseRecord);
+			if (BACKGROUND_POLISHING) {
+				polishingSolver = solver;
 			}
+			finalSolution = solver.solve(initialSolution, gurobiBudget,
+					BACKGROUND_POLISHING ? this::solutionPolished : null);
+			gap = solver.getGap();
+		}
+	}
 
-			int n = rData.dimension;
-			int m = vData.getSize();
+	// polishing thread: each improvement replaces the previous one; applied by applyPolishedSolution()
+	private void solutionPolished(MIPSolution solution, double objective) {
+		polishedSolution = solution;
+	}
 
-			boolean[][] x = new boolean[m + n][m + n];
-			for (int u = 0; u < m + n; u++) {
-				for (int v = 0; v < m + n; v++) {
+	boolean hasPolishedSolution() {
+		return polishedSolution != null;
+	}
 
-					// line format: x_430,430 0
-					if (!s.next().equals("x_" + u + "," + v)) {
-						throw new RuntimeException();
-					}
+	/**
+	 * Mobsim thread: replaces the applied solution with the polished one. The requests of the applied solution
+	 * must have been unscheduled beforehand (and be back among the unplanned requests); chains that are no longer
+	 * valid are skipped (as in the ASYNC mode).
+	 */
+	void applyPolishedSolution() {
+		finalSolution = polishedSolution;
+		polishedSolution = null;
+		dropOutdatedChains();
+		scheduleSolution();
+	}
 
-					x[u][v] = s.nextDouble() >= 0.5;
+	/**
+	 * Mobsim thread: re-applies the applied solution after its requests have been unscheduled (a re-optimization
+	 * suppressed by {@link MIPRequestInserter}). Requests no longer unplanned (e.g. picked up or rejected) are
+	 * skipped; the others are appended to their vehicles again, in the same order. As in the ASYNC mode, chains of
+	 * vehicles that will not become idle where (or at all) or when the snapshot assumed are dropped; if the head of
+	 * a chain has been served meanwhile, the vehicle is expected at the dropoff of the last served request instead.
+	 */
+	void reapplySolution() {
+		int m = vData.getSize();
+		double now = timer.getTimeOfDay();
+		Set<TaxiRequest> unplanned = new HashSet<>(unplannedRequests);
+		int[] successor = MIPSolution.createEmptySuccessors(finalSolution.successor.length);
+		for (int k = 0; k < m; k++) {
+			VehicleData.Entry entry = vData.getEntry(k);
+			Link expectedLink = entry.link;
+			boolean headServed = false;
+			int prev = k;
+			for (int u = finalSolution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = finalSolution.successor[u]) {
+				TaxiRequest req = rData.requests[u - m];
+				if (req.getStatus() == TaxiRequestStatus.UNPLANNED && unplanned.contains(req)) {
+					successor[prev] = u;
+					prev = u;
+				} else if (prev == k && req.getStatus() != TaxiRequestStatus.UNPLANNED) {
+					expectedLink = req.getToLink();
+					headServed = true;
 				}
 			}
 
-			double[] w = new double[n];
-			for (int i = 0; i < n; i++) {
+			if (successor[k] != MIPSolution.NO_SUCCESSOR
+					&& !isDepartureAsExpected(entry, expectedLink, !headServed, now)) {
+				successor[k] = MIPSolution.NO_SUCCESSOR;
+			}
+		}
 
-				// line format: w_0 22096
-				if (!s.next().equals("w_" + i)) {
-					throw new RuntimeException();
-				}
+		finalSolution = new MIPSolution(successor, finalSolution.w);
+		scheduleSolution();
+	}
+
+	/**
+	 * Any thread: no more polished solutions are needed (e.g. a newer optimization has started).
+	 */
+	void stopPolishing() {
+		if (polishingSolver != null) {
+			polishingSolver.cancelPolishing();
+		}
+		polishedSolution = null;
+	}
 
-				w[i] = s.nextDouble();
+	// the vehicles have been moving while solving: skip (leaving the requests unplanned) the chains of vehicles
+	// that will not become idle where (or at all) or when the snapshot assumed
+	private void dropOutdatedChains() {
+		double now = timer.getTimeOfDay();
+		for (int k = 0; k < vData.getSize(); k++) {
+			if (!isDepartureAsExpected(vData.getEntry(k), vData.getEntry(k).link, true, now)) {
+				finalSolution.successor[k] = MIPSolution.NO_SUCCESSOR;
+				continue;
 			}
 
-			finalSolution = new MIPSolution(x, w);
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
+			for (int u = finalSolution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = finalSolution.successor[u]) {
+				if (rData.requests[u - vData.getSize()].getStatus() != TaxiRequestStatus.UNPLANNED) {
+					finalSolution.successor[k] = MIPSolution.NO_SUCCESSOR;
+					break;
+				}
+			}
 		}
 	}
 
-	private int getPlanningHorizon() {
-		return vData.getSize() * MODE.reqsPerVeh;
+	// null departure: e.g. out of service; the time is not known once the head of the chain has been served
+	private boolean isDepartureAsExpected(VehicleData.Entry entry, Link expectedLink, boolean checkTime, double now) {
+		LinkTimePair departure = scheduler.getEarliestIdleness(entry.vehicle);
+		if (departure == null || departure.link != expectedLink) {
+			return false;
+		}
+
+		// (vehicles idle at the snapshot are now expected to depart now)
+		return !checkTime || Math.abs(departure.time - Math.max(entry.time, now)) <= DEPARTURE_TIME_TOLERANCE;
 	}
 
-	private int getPlannedRequestCount() {
+	private void scheduleSolution() {
+		long startNanos = System.nanoTime();
+		new MIPSolutionScheduler(scheduler, network, travelTime, travelDisutility, rData, vData)
+				.updateSchedules(finalSolution);
+		phaseRecord.addPhaseTime(Phase.SCHEDULE_UPDATE, startNanos);
+		if (warmStart != null) {
+			warmStart.update(rData, vData, finalSolution);
+		}
+
+		int m = vData.getSize();
+		for (int k = 0; k < m; k++) {
+			for (int u = finalSolution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = finalSolution.successor[u]) {
+				unplannedRequests.remove(rData.requests[u - m]);
+			}
+		}
+	}
+
+	int getPlannedRequestCount() {
 		return rData.dimension;
 	}
 
 	boolean isPlanningHorizonFull() {
-		return getPlanningHorizon() == getPlannedRequestCount();
+		return planningHorizon == getPlannedRequestCount();
+	}
+
+	/**
+	 * @return planned (MIP) pickup times of the requests in the applied solution
+	 */
+	Map<Id<Request>, Double> getPlannedPickupTimes() {
+		Map<Id<Request>, Double> plannedPickupTimes = new HashMap<>();
+		int m = vData.getSize();
+		for (int k = 0; k < m; k++) {
+			for (int u = finalSolution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = finalSolution.successor[u]) {
+				plannedPickupTimes.put(rData.requests[u - m].getId(), finalSolution.w[u - m]);
+			}
+		}
+		return plannedPickupTimes;
+	}
+
+	/**
+	 * @return vehicles with requests in the applied solution
+	 */
+	List<Vehicle> getScheduledVehicles() {
+		List<Vehicle> vehicles = new ArrayList<>();
+		for (int k = 0; k < vData.getSize(); k++) {
+			if (finalSolution.successor[k] != MIPSolution.NO_SUCCESSOR) {
+				vehicles.add(vData.getEntry(k).vehicle);
+			}
+		}
+		return vehicles;
+	}
+
+	MIPPhaseRecord getPhaseRecord() {
+		return phaseRecord;
+	}
+
+	boolean isSolved() {
+		return solved;
+	}
+
+	int getBacklog() {
+		return backlog;
+	}
+
+	double getSolveTime() {
+		return solveTime;
+	}
+
+	double getGap() {
+		return gap;
 	}
 }
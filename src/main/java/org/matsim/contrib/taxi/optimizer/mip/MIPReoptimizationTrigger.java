@@ -0,0 +1,148 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.dvrp.data.Request;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+
+/**
+ * Coalesces re-optimization triggers (new requests, pickups), so that at peak load a MIP is solved only when the
+ * expected gain justifies the cost:
+ * <ul>
+ * <li>no solve within MIN_INTERVAL after the previous one (debounce)</li>
+ * <li>afterwards, a solve runs if at least REQUEST_THRESHOLD requests submitted since the previous solve are
+ * waiting, or if since the previous solve a pickup has deviated from its planned (MIP) time by at least
+ * DEVIATION_THRESHOLD</li>
+ * <li>regardless of the thresholds, a solve runs once the plan is older than MAX_STALENESS (and requests are
+ * waiting)</li>
+ * </ul>
+ * Suppressed triggers stay pending and are re-checked every time step (see {@link #isDue(double, Collection)}). All
+ * triggers are counted, either as executed or as suppressed (by the reason).
+ *
+ * @author michalm
+ */
+class MIPReoptimizationTrigger {
+	static final double MIN_INTERVAL = 30;// [s] simulated
+	static final int REQUEST_THRESHOLD = 5;
+	static final double DEVIATION_THRESHOLD = 120;// [s]
+	static final double MAX_STALENESS = 300;// [s]
+
+	private double lastSolveTime = Double.NEGATIVE_INFINITY;
+	private double maxDeviation = 0;// of the pickups since the previous solve
+	private Map<Id<Request>, Double> plannedPickupTimes = new HashMap<>();// of the last applied solution
+	private boolean pending = false;
+
+	private long executedCount = 0;
+	private long suppressedBySolvingCount = 0;
+	private long suppressedByHorizonCount = 0;
+	private long suppressedByIntervalCount = 0;
+	private long suppressedByThresholdCount = 0;
+
+	/**
+	 * @return true if the triggered re-optimization should run now
+	 */
+	boolean shouldReoptimize(double time, Collection<TaxiRequest> unplannedRequests) {
+		if (isDue(time, unplannedRequests)) {
+			return true;
+		}
+
+		if (time - lastSolveTime < MIN_INTERVAL) {
+			suppressedByIntervalCount++;
+		} else {
+			suppressedByThresholdCount++;
+		}
+		pending = true;
+		return false;
+	}
+
+	/**
+	 * Triggered, but a solve is already running.
+	 */
+	void suppressBySolving() {
+		suppressedBySolvingCount++;
+		pending = true;
+	}
+
+	/**
+	 * Triggered, but the planning horizon has been filled and there has been no pickup since.
+	 */
+	void suppressByHorizon() {
+		suppressedByHorizonCount++;
+	}
+
+	boolean isPending() {
+		return pending;
+	}
+
+	/**
+	 * @return true if the re-optimization should run now; if so, it is counted as executed
+	 */
+	boolean isDue(double time, Collection<TaxiRequest> unplannedRequests) {
+		if (unplannedRequests.isEmpty()) {
+			pending = false;
+			return false;
+		}
+
+		double age = time - lastSolveTime;
+		boolean due = age >= MAX_STALENESS || (age >= MIN_INTERVAL
+				&& (countNewRequests(unplannedRequests) >= REQUEST_THRESHOLD
+						|| maxDeviation >= DEVIATION_THRESHOLD));
+		if (due) {
+			executedCount++;
+			lastSolveTime = time;
+			maxDeviation = 0;
+			pending = false;
+		}
+		return due;
+	}
+
+	// requests left unplanned by the previous solves (or unscheduled before each re-optimization) are not new
+	private long countNewRequests(Collection<TaxiRequest> unplannedRequests) {
+		return unplannedRequests.stream().filter(r -> r.getSubmissionTime() > lastSolveTime).count();
+	}
+
+	/**
+	 * @param plannedPickupTimes
+	 *            of the requests scheduled by the solve (replace those of the previous solve)
+	 */
+	void optimizationCompleted(Map<Id<Request>, Double> plannedPickupTimes) {
+		this.plannedPickupTimes = plannedPickupTimes;
+	}
+
+	void requestPickedUp(Id<Request> requestId, double time) {
+		Double plannedTime = plannedPickupTimes.remove(requestId);
+		if (plannedTime != null) {
+			maxDeviation = Math.max(maxDeviation, Math.abs(time - plannedTime));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "triggers: executed=" + executedCount + ", suppressed (solving/horizon/interval/threshold)="
+				+ suppressedBySolvingCount + "/" + suppressedByHorizonCount + "/" + suppressedByIntervalCount + "/"
+				+ suppressedByThresholdCount;
+	}
+}
@@ -34,8 +34,12 @@ class MIPRequestData {
 	final int dimension;
 
 	MIPRequestData(SortedSet<TaxiRequest> unplannedRequests, int planningHorizon) {
-		dimension = Math.min(planningHorizon, unplannedRequests.size());
-		requests = unplannedRequests.stream().limit(dimension).toArray(TaxiRequest[]::new);
+		this(unplannedRequests.stream().limit(planningHorizon).toArray(TaxiRequest[]::new));
+	}
+
+	MIPRequestData(TaxiRequest[] requests) {
+		this.requests = requests;
+		dimension = requests.length;
 
 		reqIdToIdx = Maps.newHashMapWithExpectedSize(dimension);
 		for (int i = 0; i < dimension; i++) {
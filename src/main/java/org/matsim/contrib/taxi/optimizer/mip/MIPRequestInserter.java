@@ -20,25 +20,33 @@ package org.matsim.contrib.taxi.optimizer.mip;
 
 import java.util.Collection;
 import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.contrib.dvrp.data.Fleet;
-import org.matsim.contrib.dvrp.router.DijkstraWithDijkstraTreeCache;
-import org.matsim.contrib.dvrp.router.TimeAsTravelDisutility;
-import org.matsim.contrib.dvrp.util.TimeDiscretizer;
 import org.matsim.contrib.taxi.data.TaxiRequest;
 import org.matsim.contrib.taxi.optimizer.UnplannedRequestInserter;
 import org.matsim.contrib.taxi.run.TaxiConfigGroup;
 import org.matsim.contrib.taxi.scheduler.TaxiScheduler;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
 import org.matsim.core.mobsim.framework.MobsimTimer;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
-import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
 
 /**
  * @author michalm
  */
 public class MIPRequestInserter implements UnplannedRequestInserter {
+	private static final double TREE_TIME_BIN = 15 * 60;// [s]
+	private static final boolean OFF_HEAP_TREES = false;
+
+	// true: bursts of re-optimization triggers are coalesced (see MIPReoptimizationTrigger)
+	// false: re-optimization on every new request/pickup (unless the planning horizon is full)
+	private static final boolean COALESCE_TRIGGERS = false;
+
 	private final TaxiConfigGroup taxiCfg;
 	private final Network network;
 	private final Fleet fleet;
@@ -47,15 +55,33 @@ public class MIPRequestInserter implements UnplannedRequestInserter {
 	private final TravelTime travelTime;
 	private final TravelDisutility travelDisutility;
 
-	private final PathTreeBasedTravelTimeCalculator pathTreeTravelTimeCalc;
+	private final MIPTravelTimeCache travelTimeCache;// shared by all subsequent MIP instances
+	private final MIPHorizonController horizonController;// null if !ADAPTIVE_HORIZON
+	private final MIPReoptimizationTrigger trigger;// null if !COALESCE_TRIGGERS
+	private final MIPWarmStart warmStart;// null if !WARM_START
+	private final MIPMetrics metrics;
+	private final MIPFleetStats fleetStats = new MIPFleetStats();
+	private final MIPStatsLog statsLog;
+	private final MIPGurobiPersistentSolver persistentSolver;
+
+	private SortedSet<TaxiRequest> unplannedRequests;// live set of the optimizer
 
 	private boolean hasPickedUpReqsRecently = false;
 	private boolean wasLastPlanningHorizonFull = false;// in order to run optimization for the first request
 
 	private int optimCounter = 0;
 
+	private final ExecutorService solvingExecutor;// ASYNC only
+	private MIPProblem solvedProblem;// ASYNC only; submitted, but not applied yet
+	private Future<?> solving;
+	private boolean triggeredWhileSolving = false;// ASYNC only; re-optimization once the solution is applied
+
+	private MIPProblem polishedProblem;// BACKGROUND_POLISHING only; the last applied one, may still be polished
+	private MIPProblem appliedProblem;// the last applied one; re-applied when a re-optimization is suppressed
+
 	public MIPRequestInserter(TaxiConfigGroup taxiCfg, Fleet fleet, TaxiScheduler scheduler, Network network,
-			MobsimTimer timer, TravelTime travelTime, TravelDisutility travelDisutility) {
+			MobsimTimer timer, TravelTime travelTime, TravelDisutility travelDisutility,
+			OutputDirectoryHierarchy outputDirectory) {
 		this.taxiCfg = taxiCfg;
 		this.fleet = fleet;
 		this.scheduler = scheduler;
@@ -64,15 +90,47 @@ public class MIPRequestInserter implements UnplannedRequestInserter {
 		this.travelTime = travelTime;
 		this.travelDisutility = travelDisutility;
 
-		// TODO should they be taken from optimContext????; what to used then in TaxiScheduler?
-		TravelTime treeTravelTime = new FreeSpeedTravelTime();
-		TravelDisutility treeTravelDisutility = new TimeAsTravelDisutility(treeTravelTime);
-		pathTreeTravelTimeCalc = new PathTreeBasedTravelTimeCalculator(new DijkstraWithDijkstraTreeCache(network,
-				treeTravelDisutility, treeTravelTime, TimeDiscretizer.CYCLIC_24_HOURS));
+		// path trees follow the travel times of the simulation (binned, periodically refreshed)
+		// or alternatively, static free-flow trees:
+		// pathTravelTimeCalc = new PathTreeBasedTravelTimeCalculator(network, new FreeSpeedTravelTime());
+		// or free-flow times from a contraction hierarchy (fast bulk queries, preprocessed once per network):
+		// pathTravelTimeCalc = new ContractionHierarchyTravelTimeCalculator(network);
+		PathTravelTimeCalculator pathTravelTimeCalc = new PathTreeBasedTravelTimeCalculator(network, travelTime,
+				TREE_TIME_BIN, PathTreeBasedTravelTimeCalculator.DEFAULT_REFRESH_INTERVAL,
+				PathTreeBasedTravelTimeCalculator.DEFAULT_TREE_BYTE_BUDGET, OFF_HEAP_TREES,
+				Runtime.getRuntime().availableProcessors());
+		// drives that are too long even at the beeline are screened out (null: no screening)
+		travelTimeCache = new MIPTravelTimeCache(pathTravelTimeCalc, new TravelTimeLowerBound(network));
+
+		persistentSolver = MIPProblem.PERSISTENT_MODEL ? new MIPGurobiPersistentSolver(taxiCfg) : null;
+		horizonController = MIPProblem.ADAPTIVE_HORIZON ? new MIPHorizonController(MIPProblem.MODE.reqsPerVeh) : null;
+		trigger = COALESCE_TRIGGERS ? new MIPReoptimizationTrigger() : null;
+		warmStart = MIPProblem.WARM_START ? new MIPWarmStart() : null;
+		metrics = new MIPMetrics(outputDirectory.getOutputFilename(MIPMetrics.CSV_FILE));
+		statsLog = new MIPStatsLog(outputDirectory.getOutputFilename(MIPStatsLog.FILE));
+
+		solvingExecutor = MIPProblem.ASYNC ? Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "MIP solving");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
 	}
 
 	@Override
 	public void scheduleUnplannedRequests(Collection<TaxiRequest> unplannedRequests) {
+		this.unplannedRequests = (SortedSet<TaxiRequest>)unplannedRequests;
+
+		if (solving != null) {
+			// still solving; the remaining requests will be scheduled after the solution has been applied
+			if (trigger != null) {
+				trigger.suppressBySolving();
+			} else {
+				triggeredWhileSolving = true;
+			}
+			reapplyLastPlan();
+			return;
+		}
+
 		if (unplannedRequests.isEmpty()) {
 			// nothing new to be planned and we want to avoid extra re-planning of what has been
 			// already planned (high computational cost while only marginal improvement)
@@ -81,23 +139,186 @@ public class MIPRequestInserter implements UnplannedRequestInserter {
 
 		if (wasLastPlanningHorizonFull && // last time we planned as many requests as possible, and...
 				!hasPickedUpReqsRecently) {// ...since then no empty space has appeared in the planning horizon
+			if (trigger != null) {
+				trigger.suppressByHorizon();
+				reapplyLastPlan();// (without COALESCE_TRIGGERS, as in the original flow)
+			}
+			return;
+		}
+
+		if (trigger != null && !trigger.shouldReoptimize(timer.getTimeOfDay(), unplannedRequests)) {
+			reapplyLastPlan();
+			return;
+		}
+
+		optimize();
+	}
+
+	// the optimizer unschedules all awaiting requests before calling the inserter (unscheduling is on in
+	// MIPTaxiOptimizerParams), so without re-optimization the vehicles would lose their plans
+	private void reapplyLastPlan() {
+		if (appliedProblem != null) {
+			appliedProblem.reapplySolution();
+		}
+	}
+
+	// the last plan may have been re-applied meanwhile
+	private void unscheduleAwaitingRequests() {
+		unplannedRequests.addAll(scheduler.removeAwaitingRequestsFromAllSchedules());
+	}
+
+	/**
+	 * COALESCE_TRIGGERS only: runs the pending (suppressed) re-optimization once it is due. To be called by the
+	 * mobsim thread at each time step.
+	 */
+	void reoptimizeIfDue() {
+		if (trigger == null || !trigger.isPending() || solving != null) {
 			return;
 		}
 
+		if (wasLastPlanningHorizonFull && !hasPickedUpReqsRecently) {
+			return;
+		}
+
+		if (trigger.isDue(timer.getTimeOfDay(), unplannedRequests)) {
+			unscheduleAwaitingRequests();
+			optimize();
+		}
+	}
+
+	private void optimize() {
+		if (polishedProblem != null) {
+			polishedProblem.stopPolishing();// its solution is about to be re-planned
+			polishedProblem = null;
+		}
+
 		MIPProblem mipProblem = new MIPProblem(taxiCfg, fleet, scheduler, network, timer, travelTime, travelDisutility,
-				pathTreeTravelTimeCalc);
-		mipProblem.scheduleUnplannedRequests((SortedSet<TaxiRequest>)unplannedRequests);
+				travelTimeCache, persistentSolver, horizonController, warmStart);
+
+		if (MIPProblem.ASYNC) {
+			hasPickedUpReqsRecently = false;// pickups during solving count for the next optimization
+			if (mipProblem.prepare(unplannedRequests, true)) {
+				solvedProblem = mipProblem;
+				solving = solvingExecutor.submit(mipProblem::solve);
+			} else {
+				wasLastPlanningHorizonFull = mipProblem.isPlanningHorizonFull();
+			}
+			return;
+		}
+
+		mipProblem.scheduleUnplannedRequests(unplannedRequests);
+		optimizationCompleted(mipProblem);
+		hasPickedUpReqsRecently = false;
+	}
+
+	/**
+	 * ASYNC only: applies the solution if solving has been completed. To be called by the mobsim thread at the
+	 * beginning of a time step (before re-optimization).
+	 */
+	void applyCompletedSolution() {
+		if (solving == null || !solving.isDone()) {
+			return;
+		}
+
+		try {
+			solving.get();// rethrows exceptions thrown while solving
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+
+		unscheduleAwaitingRequests();
+		solvedProblem.applySolution();
+		optimizationCompleted(solvedProblem);
+
+		solving = null;
+		solvedProblem = null;
+
+		if (triggeredWhileSolving) {
+			triggeredWhileSolving = false;
+			scheduleUnplannedRequests(unplannedRequests);
+		}
+	}
+
+	/**
+	 * BACKGROUND_POLISHING only: replaces the last applied solution with its polished version (if any). To be called
+	 * by the mobsim thread at the beginning of a time step (before re-optimization).
+	 */
+	void applyPolishedSolution() {
+		if (polishedProblem == null || !polishedProblem.hasPolishedSolution()) {
+			return;
+		}
+
+		// the requests planned by the last solution are unscheduled (as before each re-optimization)
+		unscheduleAwaitingRequests();
+		polishedProblem.applyPolishedSolution();
+		wasLastPlanningHorizonFull = polishedProblem.isPlanningHorizonFull();
+
+		if (!unplannedRequests.isEmpty()) {
+			scheduleUnplannedRequests(unplannedRequests);// e.g. chains dropped (vehicles moved on meanwhile)
+		}
+	}
+
+	private void optimizationCompleted(MIPProblem mipProblem) {
+		if (horizonController != null && mipProblem.isSolved()) {
+			horizonController.optimizationCompleted(mipProblem.getPlannedRequestCount(), mipProblem.getSolveTime(),
+					mipProblem.getGap(), mipProblem.getBacklog());
+		}
+
+		if (mipProblem.isSolved()) {
+			metrics.add(mipProblem.getPhaseRecord());
+			fleetStats.update(mipProblem.getScheduledVehicles());
+			statsLog.append(timer.getTimeOfDay(), optimCounter + 1, fleetStats);
+		}
+
+		if (trigger != null && mipProblem.isSolved()) {
+			trigger.optimizationCompleted(mipProblem.getPlannedPickupTimes());
+		}
 
 		optimCounter++;
 		if (optimCounter % 10 == 0) {
-			System.err.println(optimCounter + "; time=" + timer.getTimeOfDay());
+			System.err.println(optimCounter + "; time=" + timer.getTimeOfDay() + "; " + travelTimeCache
+					+ (horizonController != null ? "; " + horizonController : "")
+					+ (trigger != null ? "; " + trigger : ""));
 		}
 
 		wasLastPlanningHorizonFull = mipProblem.isPlanningHorizonFull();
-		hasPickedUpReqsRecently = false;
+
+		if (mipProblem.isSolved()) {
+			appliedProblem = mipProblem;
+		}
+
+		if (MIPProblem.BACKGROUND_POLISHING && mipProblem.isSolved()) {
+			polishedProblem = mipProblem;
+		}
 	}
 
-	void notifyRequestPickedUp() {
+	void notifyRequestPickedUp(TaxiRequest request) {
 		hasPickedUpReqsRecently = true;
+		travelTimeCache.evictRequest(request.getId());
+		if (trigger != null) {
+			trigger.requestPickedUp(request.getId(), timer.getTimeOfDay());
+		}
+	}
+
+	void cleanup() {
+		if (polishedProblem != null) {
+			polishedProblem.stopPolishing();
+		}
+
+		// one full pass over all schedules, once the simulation is over
+		MIPTaxiStats taxiStats = new MIPTaxiStats(fleet);
+		taxiStats.calcSimulated();
+		statsLog.appendSimulated(timer.getTimeOfDay(), taxiStats);
+
+		metrics.close();
+		statsLog.close();
+
+		if (solvingExecutor != null) {
+			solvingExecutor.shutdownNow();
+		}
+
+		if (persistentSolver != null) {
+			persistentSolver.dispose();
+		}
 	}
 }
@@ -19,90 +19,124 @@
 
 package org.matsim.contrib.taxi.optimizer.mip;
 
-import java.util.Collections;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.stream.Stream;
-
-import org.matsim.api.core.v01.network.Network;
-import org.matsim.contrib.dvrp.data.Fleet;
-import org.matsim.contrib.dvrp.passenger.PassengerRequests;
-import org.matsim.contrib.dvrp.schedule.Schedule;
-import org.matsim.contrib.taxi.data.TaxiRequest;
-import org.matsim.contrib.taxi.data.TaxiRequest.TaxiRequestStatus;
-import org.matsim.contrib.taxi.optimizer.BestDispatchFinder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
 import org.matsim.contrib.taxi.optimizer.VehicleData;
-import org.matsim.contrib.taxi.optimizer.fifo.FifoSchedulingProblem;
 import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
 import org.matsim.contrib.taxi.run.TaxiConfigGroup;
-import org.matsim.contrib.taxi.schedule.TaxiSchedules;
-import org.matsim.contrib.taxi.scheduler.TaxiScheduler;
-import org.matsim.core.mobsim.framework.MobsimTimer;
-import org.matsim.core.router.util.TravelDisutility;
-import org.matsim.core.router.util.TravelTime;
 
+/**
+ * FIFO insertion heuristic for the initial solution: requests are taken in the order of their earliest start
+ * times, and each is appended to the chain of the vehicle that reaches its pickup first (as in
+ * {@link org.matsim.contrib.taxi.optimizer.fifo.FifoSchedulingProblem}). Works only on {@link VehicleData},
+ * {@link MIPRequestData} and {@link MIPTravelTimes}; neither schedules nor the router are touched.
+ * <p>
+ * Optionally, the insertion starts from given (partial) chains, e.g. those of the previous solution (see
+ * {@link MIPWarmStart}); the pickup times along them are recalculated.
+ * <p>
+ * For large fleets, the vehicles are scanned in parallel on a detached copy of the travel times, so concurrent
+ * reads never reach the cache (which calculates missing values lazily).
+ *
+ * @author michalm
+ */
 class MIPSolutionFinder {
+	private static final int PARALLEL_MIN_VEHICLES = 1000;
+
 	private final TaxiConfigGroup taxiCfg;
-	private final TaxiScheduler scheduler;
-	private final Fleet fleet;
-	private final Network network;
-	private final MobsimTimer mobsimTimer;
-	private final TravelTime travelTime;
-	private final TravelDisutility travelDisutility;
+	private final MIPTravelTimes travelTimes;
 	private final MIPRequestData rData;
 	private final VehicleData vData;
 
-	MIPSolutionFinder(TaxiConfigGroup taxiCfg, Fleet fleet, TaxiScheduler scheduler, Network network,
-			MobsimTimer mobsimTimer, TravelTime travelTime, TravelDisutility travelDisutility, MIPRequestData rData,
+	MIPSolutionFinder(TaxiConfigGroup taxiCfg, MIPTravelTimes travelTimes, MIPRequestData rData,
 			VehicleData vData) {
 		this.taxiCfg = taxiCfg;
-		this.scheduler = scheduler;
-		this.fleet = fleet;
-		this.network = network;
-		this.mobsimTimer = mobsimTimer;
-		this.travelTime = travelTime;
-		this.travelDisutility = travelDisutility;
+		this.travelTimes = travelTimes;
 		this.rData = rData;
 		this.vData = vData;
 	}
 
 	MIPSolution findInitialSolution() {
+		return findInitialSolution(MIPSolution.createEmptySuccessors(vData.getSize() + rData.dimension));
+	}
+
+	/**
+	 * @param chains
+	 *            successors (see {@link MIPSolution}) of the chains to start with; the remaining requests are
+	 *            appended (not modified)
+	 */
+	MIPSolution findInitialSolution(int[] chains) {
 		final int m = vData.getSize();
 		final int n = rData.dimension;
 
-		final boolean[][] x = new boolean[m + n][m + n];
+		final int[] successor = chains.clone();
 		final double[] w = new double[n];
+		final boolean[] inserted = new boolean[n];
 
-		Queue<TaxiRequest> queue = new PriorityQueue<>(n, PassengerRequests.EARLIEST_START_TIME_COMPARATOR);
-		Collections.addAll(queue, rData.requests);
-
-		BestDispatchFinder dispatchFinder = new BestDispatchFinder(scheduler, network, mobsimTimer, travelTime,
-				travelDisutility);
-		new FifoSchedulingProblem(fleet, scheduler, dispatchFinder).scheduleUnplannedRequests(queue);
+		final int[] last = new int[m];// last node of each chain, u
+		final double[] departure = new double[m];// when the vehicle leaves u
 
 		double t_P = taxiCfg.getPickupDuration();
+		double t_D = taxiCfg.getDropoffDuration();
 
 		for (int k = 0; k < m; k++) {
-			Schedule schedule = vData.getEntry(k).vehicle.getSchedule();
-			Stream<TaxiRequest> plannedReqs = TaxiSchedules.getTaxiRequests(schedule)
-					.filter(r -> r.getStatus() == TaxiRequestStatus.PLANNED);
-
 			int u = k;
-			for (TaxiRequest r : (Iterable<TaxiRequest>)plannedReqs::iterator) {
-				int i = rData.reqIdToIdx.get(r.getId());
-				int v = m + i;
+			double time = vData.getEntry(k).time;
+			for (int v = successor[k]; v != MIPSolution.NO_SUCCESSOR; v = successor[v]) {
+				int i = v - m;
+				w[i] = calcPickupTime(i, time + getDriveTime(travelTimes, m, u, i));
+				inserted[i] = true;
 
-				x[u][v] = true;
+				u = v;
+				time = w[i] + t_P + travelTimes.getRideTime(i) + t_D;
+			}
 
-				double w_i = r.getPickupTask().getEndTime() - t_P;
-				w[i] = w_i;
+			last[k] = u;
+			departure[k] = time;
+		}
 
-				u = v;
+		Integer[] fifoOrder = IntStream.range(0, n).filter(i -> !inserted[i]).boxed().toArray(Integer[]::new);
+		Arrays.sort(fifoOrder, Comparator.comparingDouble(i -> rData.requests[i].getEarliestStartTime()));
+
+		boolean parallel = m >= PARALLEL_MIN_VEHICLES && fifoOrder.length > 0;
+		MIPTravelTimes scanTimes = parallel ? travelTimes.detach() : travelTimes;
+
+		for (int i : fifoOrder) {
+			IntStream vehicles = IntStream.range(0, m);
+			if (parallel) {
+				vehicles = vehicles.parallel();
+			}
+
+			double[] arrivals = new double[m];
+			vehicles.forEach(k -> arrivals[k] = departure[k] + getDriveTime(scanTimes, m, last[k], i));
+
+			int bestK = 0;
+			for (int k = 1; k < m; k++) {
+				if (arrivals[k] < arrivals[bestK]) {
+					bestK = k;
+				}
 			}
 
-			x[u][k] = true;
+			double w_i = calcPickupTime(i, arrivals[bestK]);
+			w[i] = w_i;
+			successor[last[bestK]] = m + i;
+
+			last[bestK] = m + i;
+			departure[bestK] = w_i + t_P + travelTimes.getRideTime(i) + t_D;
 		}
 
-		return new MIPSolution(x, w);
+		return new MIPSolution(successor, w);
+	}
+
+	// arrival may be +Inf (screened drive); w_i clamped so that the chain stays finite
+	private double calcPickupTime(int i, double arrival) {
+		double e_i = rData.requests[i].getEarliestStartTime();
+		return Math.min(Math.max(e_i, arrival), e_i + MIPGurobiSolver.W_MAX);
+	}
+
+	// from node u (vehicle or request) to the pickup of request i
+	private static double getDriveTime(MIPTravelTimes travelTimes, int m, int u, int i) {
+		return u < m ? travelTimes.getVehToReqTime(u, i) : travelTimes.getReqToReqTime(u - m, i);
 	}
 }
@@ -21,7 +21,6 @@ class MIPSolutionScheduler {
 	private final VehicleData vData;
 
 	private final int m;
-	private final int n;
 
 	private LeastCostPathCalculator router;
 
@@ -35,7 +34,6 @@ class MIPSolutionScheduler {
 		this.rData = rData;
 		this.vData = vData;
 		this.m = vData.getSize();
-		this.n = rData.dimension;
 
 		router = new DijkstraWithThinPath(network, travelDisutility, travelTime);
 	}
@@ -45,17 +43,10 @@ class MIPSolutionScheduler {
 
 		for (int k = 0; k < m; k++) {
 			currentVeh = vData.getEntry(k).vehicle;
-			appendSubsequentRequestsToCurrentVehicle(k);
-		}
-	}
 
-	private void appendSubsequentRequestsToCurrentVehicle(int u) {
-		boolean[] x_u = solution.x[u];
-		for (int i = 0; i < n; i++) {
-			if (x_u[m + i]) {
-				appendRequestToCurrentVehicle(i);
-				appendSubsequentRequestsToCurrentVehicle(m + i);
-				return;
+			// follow the chain k -> m+i -> m+j -> ... (iteratively; long chains in the offline mode)
+			for (int u = solution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = solution.successor[u]) {
+				appendRequestToCurrentVehicle(u - m);
 			}
 		}
 	}
@@ -68,8 +59,8 @@ class MIPSolutionScheduler {
 		// - possible inaccuracy of the optimization results
 		// (if x[.][m+i] = 0.9999 then w[i] < earliestDeparture.time may occur
 		// - we want to dispatch vehicles as soon as possible
-		// (because tt in MIP are based on the free flow speed estimates, while the actual
-		// times are usually longer hence the vehicle is likely to arrive after w[i])
+		// (because tt in MIP are estimates for the current time bin, while the actual
+		// times may be longer hence the vehicle may arrive after w[i])
 		VrpPathWithTravelData path = VrpPaths.calcAndCreatePath(earliestDeparture.link, req.getFromLink(),
 				earliestDeparture.time, router, travelTime);
 
@@ -0,0 +1,96 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.contrib.taxi.util.stats.TaxiStats;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Append-only log of {@link MIPFleetStats}, one line per optimization; lines are written (buffered) by a
+ * background thread, so the mobsim thread does not wait for the disk.
+ * <p>
+ * Format (tab-separated): time, optimization, meanWaitTime, pickups; the last line has "simulated" as the
+ * optimization, with the stats of a full pass at the end of the simulation (see {@link MIPTaxiStats}). Formerly,
+ * MIP_stats held only the initial/solved/simulated mean wait times of the last optimization.
+ *
+ * @author michalm
+ */
+class MIPStatsLog {
+	static final String FILE = "MIP_stats";
+
+	private final BufferedWriter writer;
+	private final ExecutorService writingExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "MIP stats log");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	MIPStatsLog(String file) {
+		writer = IOUtils.getBufferedWriter(file);
+		append("time\toptimization\tmeanWaitTime\tpickups");
+	}
+
+	void append(double time, int optimization, MIPFleetStats stats) {
+		append(time + "\t" + optimization + "\t" + stats.getMeanWaitTime() + "\t" + stats.getPickupCount());
+	}
+
+	void appendSimulated(double time, MIPTaxiStats stats) {
+		TaxiStats simulated = stats.getSimulated();
+		append(time + "\tsimulated\t" + simulated.passengerWaitTime.getMean() + "\t"
+				+ simulated.passengerWaitTime.getN());
+	}
+
+	private void append(String line) {
+		writingExecutor.execute(() -> {
+			try {
+				writer.write(line);
+				writer.newLine();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/**
+	 * Writes the remaining lines and closes the file.
+	 */
+	void close() {
+		writingExecutor.execute(() -> {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		writingExecutor.shutdown();
+		try {
+			writingExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -22,11 +22,15 @@ package org.matsim.contrib.taxi.optimizer.mip;
 import org.matsim.contrib.dvrp.data.Fleet;
 import org.matsim.contrib.taxi.optimizer.DefaultTaxiOptimizer;
 import org.matsim.contrib.taxi.run.TaxiConfigGroup;
+import org.matsim.contrib.taxi.schedule.TaxiPickupTask;
 import org.matsim.contrib.taxi.schedule.TaxiTask;
 import org.matsim.contrib.taxi.schedule.TaxiTask.TaxiTaskType;
 import org.matsim.contrib.taxi.scheduler.TaxiScheduler;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeCleanupEvent;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeCleanupListener;
 
-public class MIPTaxiOptimizer extends DefaultTaxiOptimizer {
+public class MIPTaxiOptimizer extends DefaultTaxiOptimizer implements MobsimBeforeCleanupListener {
 	private final MIPRequestInserter requestInserter;
 
 	public MIPTaxiOptimizer(TaxiConfigGroup taxiCfg, Fleet fleet, TaxiScheduler scheduler,
@@ -40,13 +44,26 @@ public class MIPTaxiOptimizer extends DefaultTaxiOptimizer {
 		}
 	}
 
+	@Override
+	public void notifyMobsimBeforeSimStep(@SuppressWarnings("rawtypes") MobsimBeforeSimStepEvent e) {
+		requestInserter.applyCompletedSolution();// ASYNC only
+		requestInserter.applyPolishedSolution();// BACKGROUND_POLISHING only
+		super.notifyMobsimBeforeSimStep(e);
+		requestInserter.reoptimizeIfDue();// COALESCE_TRIGGERS only
+	}
+
 	@Override
 	protected boolean doReoptimizeAfterNextTask(TaxiTask newCurrentTask) {
 		if (newCurrentTask.getTaxiTaskType() == TaxiTaskType.PICKUP) {
-			requestInserter.notifyRequestPickedUp();
+			requestInserter.notifyRequestPickedUp(((TaxiPickupTask)newCurrentTask).getRequest());
 			return true;
 		}
 
 		return false;
 	}
+
+	@Override
+	public void notifyMobsimBeforeCleanup(@SuppressWarnings("rawtypes") MobsimBeforeCleanupEvent e) {
+		requestInserter.cleanup();
+	}
 }
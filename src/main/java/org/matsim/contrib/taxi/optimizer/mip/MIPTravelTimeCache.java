@@ -0,0 +1,482 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.dvrp.data.Request;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+
+/**
+ * Keeps the travel times used by the MIP across consecutive optimizations. Each cached request occupies a slot
+ * (the same in all arrays) and each vehicle departure link a row:
+ * <ul>
+ * <li>pickup->dropoff: {@code rideTimes[reqSlot]}</li>
+ * <li>dropoff->pickup: {@code reqToReqTimes[fromReqSlot][toReqSlot]}</li>
+ * <li>link->pickup: {@code linkToPickupTimes[linkSlot][reqSlot]}</li>
+ * </ul>
+ * Values are calculated lazily (NaN == not calculated yet), so only new rows and columns are computed after
+ * re-optimization. Requests are evicted once picked up or no longer unplanned (e.g. rejected); links once no
+ * vehicle departs from them. All values are invalidated whenever the underlying path trees change (new time bin,
+ * refreshed link travel times).
+ * <p>
+ * Drives to pickups (dropoff->pickup, link->pickup) are screened before the exact lookup: if a lower bound already
+ * exceeds TP_MAX, the drive is excluded anyway (see {@link MIPArcs}), so +Infinity is stored instead of the exact
+ * time (no path tree touched). Thus, all consumers treat screened drives as excluded.
+ *
+ * @author michalm
+ */
+class MIPTravelTimeCache {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final PathTravelTimeCalculator pathTravelTimeCalc;
+	private final TravelTimeLowerBound lowerBound;// null: no screening
+
+	private final Map<Id<Request>, Integer> reqSlots = new HashMap<>();
+	private TaxiRequest[] requests = new TaxiRequest[INITIAL_CAPACITY];
+	private double[] rideTimes = newNaNArray(INITIAL_CAPACITY);
+	private double[][] reqToReqTimes = new double[INITIAL_CAPACITY][];
+	private final SlotPool reqSlotPool = new SlotPool();
+
+	private final Map<Id<Link>, Integer> linkSlots = new HashMap<>();
+	private Link[] links = new Link[INITIAL_CAPACITY];
+	private double[][] linkToPickupTimes = new double[INITIAL_CAPACITY][];
+	private final SlotPool linkSlotPool = new SlotPool();
+
+	private int reqCapacity = INITIAL_CAPACITY;
+	private int treeVersion;
+
+	private long screenedCount = 0;// exact lookups saved by screening
+	private long exactCount = 0;
+
+	MIPTravelTimeCache(PathTravelTimeCalculator pathTravelTimeCalc, TravelTimeLowerBound lowerBound) {
+		this.pathTravelTimeCalc = pathTravelTimeCalc;
+		this.lowerBound = lowerBound;
+		treeVersion = pathTravelTimeCalc.getVersion();
+	}
+
+	/**
+	 * To be called before {@link #bind(MIPRequestData, VehicleData)}; moves the trees to the current time bin.
+	 */
+	void updateTime(double time) {
+		pathTravelTimeCalc.updateTime(time);
+
+		int version = pathTravelTimeCalc.getVersion();
+		if (version != treeVersion) {
+			treeVersion = version;
+			invalidateAll();
+		}
+	}
+
+	private void invalidateAll() {
+		Arrays.fill(rideTimes, Double.NaN);
+		for (double[] row : reqToReqTimes) {
+			if (row != null) {
+				Arrays.fill(row, Double.NaN);
+			}
+		}
+		for (double[] row : linkToPickupTimes) {
+			if (row != null) {
+				Arrays.fill(row, Double.NaN);
+			}
+		}
+	}
+
+	/**
+	 * Creates the index-based view for a single MIP instance; requests/links not cached yet get new slots.
+	 */
+	MIPTravelTimes bind(MIPRequestData rData, VehicleData vData) {
+		int n = rData.dimension;
+		int m = vData.getSize();
+
+		int[] reqSlotOfIdx = new int[n];
+		for (int i = 0; i < n; i++) {
+			reqSlotOfIdx[i] = getOrAddRequest(rData.requests[i]);
+		}
+
+		Set<Id<Link>> departureLinkIds = new HashSet<>();
+		int[] linkSlotOfIdx = new int[m];
+		for (int k = 0; k < m; k++) {
+			Link link = vData.getEntry(k).link;
+			departureLinkIds.add(link.getId());
+			linkSlotOfIdx[k] = getOrAddLink(link);
+		}
+
+		// rows of links without any departing vehicle will not be needed
+		Iterator<Map.Entry<Id<Link>, Integer>> linkIter = linkSlots.entrySet().iterator();
+		while (linkIter.hasNext()) {
+			Map.Entry<Id<Link>, Integer> e = linkIter.next();
+			if (!departureLinkIds.contains(e.getKey())) {
+				int slot = e.getValue();
+				links[slot] = null;
+				linkToPickupTimes[slot] = null;
+				linkSlotPool.release(slot);
+				linkIter.remove();
+			}
+		}
+
+		return new MIPTravelTimes(this, reqSlotOfIdx, linkSlotOfIdx);
+	}
+
+	/**
+	 * Computes in bulk all travel times of the instance that have not been cached yet (instead of one by one when
+	 * looked up): vehicle departure links->pickups, dropoffs->pickups and pickups->dropoffs.
+	 */
+	void prefetch(MIPRequestData rData, VehicleData vData) {
+		int n = rData.dimension;
+		int[] reqSlotOfIdx = new int[n];
+		List<Link> pickupLinks = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			reqSlotOfIdx[i] = reqSlots.get(rData.requests[i].getId());
+			pickupLinks.add(rData.requests[i].getFromLink());
+		}
+
+		// departure links->pickups (only rows with missing values)
+		Set<Integer> checkedLinkSlots = new HashSet<>();
+		List<Integer> linkRows = new ArrayList<>();
+		List<Link> departureLinks = new ArrayList<>();
+		for (int k = 0; k < vData.getSize(); k++) {
+			Link link = vData.getEntry(k).link;
+			int linkSlot = linkSlots.get(link.getId());
+			if (checkedLinkSlots.add(linkSlot) && hasMissingValues(linkToPickupTimes[linkSlot], reqSlotOfIdx)) {
+				linkRows.add(linkSlot);
+				departureLinks.add(link);
+			}
+		}
+		fillMissingValues(linkToPickupTimes, linkRows, departureLinks, pickupLinks, reqSlotOfIdx);
+
+		// dropoffs->pickups and pickups->dropoffs (only rows with missing values)
+		List<Integer> reqRows = new ArrayList<>();
+		List<Link> dropoffLinks = new ArrayList<>();
+		List<Link> rideFromLinks = new ArrayList<>();
+		List<Link> rideToLinks = new ArrayList<>();
+		List<Integer> rideSlots = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			int slot = reqSlotOfIdx[i];
+			TaxiRequest req = rData.requests[i];
+			if (hasMissingValues(reqToReqTimes[slot], reqSlotOfIdx)) {
+				reqRows.add(slot);
+				dropoffLinks.add(req.getToLink());
+			}
+			if (Double.isNaN(rideTimes[slot])) {
+				rideSlots.add(slot);
+				rideFromLinks.add(req.getFromLink());
+				rideToLinks.add(req.getToLink());
+			}
+		}
+		fillMissingValues(reqToReqTimes, reqRows, dropoffLinks, pickupLinks, reqSlotOfIdx);
+
+		if (!rideSlots.isEmpty()) {
+			double[] times = pathTravelTimeCalc.calcPairwiseTravelTimes(rideFromLinks, rideToLinks);
+			for (int r = 0; r < rideSlots.size(); r++) {
+				rideTimes[rideSlots.get(r)] = times[r];
+			}
+		}
+	}
+
+	private static boolean hasMissingValues(double[] row, int[] columns) {
+		for (int c : columns) {
+			if (Double.isNaN(row[c])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// screens all missing values first, then computes the exact ones only for the rows/columns still missing
+	private void fillMissingValues(double[][] table, List<Integer> rows, List<Link> fromLinks, List<Link> toLinks,
+			int[] columns) {
+		List<double[]> exactRows = new ArrayList<>();
+		List<Link> exactFromLinks = new ArrayList<>();
+		boolean[] exactColumnFlags = new boolean[columns.length];
+		for (int r = 0; r < rows.size(); r++) {
+			double[] row = table[rows.get(r)];
+			boolean exactRow = false;
+			for (int c = 0; c < columns.length; c++) {
+				if (Double.isNaN(row[columns[c]])) {
+					double lb = calcLowerBound(fromLinks.get(r), toLinks.get(c));
+					if (lb > MIPGurobiSolver.TP_MAX) {
+						row[columns[c]] = Double.POSITIVE_INFINITY;
+						screenedCount++;
+					} else {
+						exactRow = exactColumnFlags[c] = true;
+					}
+				}
+			}
+			if (exactRow) {
+				exactRows.add(row);
+				exactFromLinks.add(fromLinks.get(r));
+			}
+		}
+
+		if (exactRows.isEmpty()) {
+			return;
+		}
+
+		List<Integer> exactColumns = new ArrayList<>();
+		List<Link> exactToLinks = new ArrayList<>();
+		for (int c = 0; c < columns.length; c++) {
+			if (exactColumnFlags[c]) {
+				exactColumns.add(columns[c]);
+				exactToLinks.add(toLinks.get(c));
+			}
+		}
+
+		double[][] times = pathTravelTimeCalc.calcTravelTimes(exactFromLinks, exactToLinks);
+		for (int r = 0; r < exactRows.size(); r++) {
+			double[] row = exactRows.get(r);
+			for (int c = 0; c < exactColumns.size(); c++) {
+				int column = exactColumns.get(c);
+				if (Double.isNaN(row[column])) {
+					row[column] = times[r][c];
+					exactCount++;
+				}
+			}
+		}
+	}
+
+	private double calcLowerBound(Link fromLink, Link toLink) {
+		return lowerBound == null ? 0 : lowerBound.calcLowerBound(fromLink, toLink);
+	}
+
+	// drive to pickup: screened first
+	private double calcPickupDriveTime(Link fromLink, Link pickupLink) {
+		double lb = calcLowerBound(fromLink, pickupLink);
+		if (lb > MIPGurobiSolver.TP_MAX) {
+			screenedCount++;
+			return Double.POSITIVE_INFINITY;
+		}
+
+		exactCount++;
+		return pathTravelTimeCalc.calcTravelTime(fromLink, pickupLink);
+	}
+
+	/**
+	 * Evicts all requests that are not unplanned any more (picked up, rejected, cancelled...)
+	 */
+	void retainRequests(Collection<TaxiRequest> unplannedRequests) {
+		Set<Id<Request>> unplannedIds = new HashSet<>();
+		for (TaxiRequest r : unplannedRequests) {
+			unplannedIds.add(r.getId());
+		}
+
+		Iterator<Map.Entry<Id<Request>, Integer>> reqIter = reqSlots.entrySet().iterator();
+		while (reqIter.hasNext()) {
+			Map.Entry<Id<Request>, Integer> e = reqIter.next();
+			if (!unplannedIds.contains(e.getKey())) {
+				releaseRequestSlot(e.getValue());
+				reqIter.remove();
+			}
+		}
+	}
+
+	void evictRequest(Id<Request> requestId) {
+		Integer slot = reqSlots.remove(requestId);
+		if (slot != null) {
+			releaseRequestSlot(slot);
+		}
+	}
+
+	int getCachedRequestCount() {
+		return reqSlots.size();
+	}
+
+	double getRideTime(int reqSlot) {
+		double t = rideTimes[reqSlot];
+		if (Double.isNaN(t)) {
+			TaxiRequest req = requests[reqSlot];
+			t = rideTimes[reqSlot] = pathTravelTimeCalc.calcTravelTime(req.getFromLink(), req.getToLink());
+		}
+		return t;
+	}
+
+	double getReqToReqTime(int fromReqSlot, int toReqSlot) {
+		double[] row = reqToReqTimes[fromReqSlot];
+		double t = row[toReqSlot];
+		if (Double.isNaN(t)) {
+			t = row[toReqSlot] = calcPickupDriveTime(requests[fromReqSlot].getToLink(),
+					requests[toReqSlot].getFromLink());
+		}
+		return t;
+	}
+
+	double getLinkToPickupTime(int linkSlot, int reqSlot) {
+		double[] row = linkToPickupTimes[linkSlot];
+		double t = row[reqSlot];
+		if (Double.isNaN(t)) {
+			t = row[reqSlot] = calcPickupDriveTime(links[linkSlot], requests[reqSlot].getFromLink());
+		}
+		return t;
+	}
+
+	double[] copyRideTimes() {
+		return rideTimes.clone();
+	}
+
+	/**
+	 * @return copies of the rows of the given slots (the other rows are null)
+	 */
+	double[][] copyReqToReqRows(int[] reqSlots) {
+		return copyRows(reqToReqTimes, reqSlots);
+	}
+
+	/**
+	 * @return copies of the rows of the given slots (the other rows are null)
+	 */
+	double[][] copyLinkToPickupRows(int[] linkSlots) {
+		return copyRows(linkToPickupTimes, linkSlots);
+	}
+
+	private static double[][] copyRows(double[][] table, int[] slots) {
+		double[][] copy = new double[table.length][];
+		for (int s : slots) {
+			if (copy[s] == null) {
+				copy[s] = table[s].clone();
+			}
+		}
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		return "screened/exact=" + screenedCount + "/" + exactCount + "; " + pathTravelTimeCalc;
+	}
+
+	private int getOrAddRequest(TaxiRequest req) {
+		Integer slot = reqSlots.get(req.getId());
+		if (slot != null) {
+			return slot;
+		}
+
+		int newSlot = reqSlotPool.acquire();
+		if (newSlot == reqCapacity) {
+			growRequestCapacity();
+		}
+
+		requests[newSlot] = req;
+		rideTimes[newSlot] = Double.NaN;
+		reqToReqTimes[newSlot] = newNaNArray(reqCapacity);
+
+		// the slot might have been used by an evicted request
+		for (double[] row : reqToReqTimes) {
+			if (row != null) {
+				row[newSlot] = Double.NaN;
+			}
+		}
+		for (double[] row : linkToPickupTimes) {
+			if (row != null) {
+				row[newSlot] = Double.NaN;
+			}
+		}
+
+		reqSlots.put(req.getId(), newSlot);
+		return newSlot;
+	}
+
+	private int getOrAddLink(Link link) {
+		Integer slot = linkSlots.get(link.getId());
+		if (slot != null) {
+			return slot;
+		}
+
+		int newSlot = linkSlotPool.acquire();
+		if (newSlot == links.length) {
+			links = Arrays.copyOf(links, 2 * newSlot);
+			linkToPickupTimes = Arrays.copyOf(linkToPickupTimes, 2 * newSlot);
+		}
+
+		links[newSlot] = link;
+		linkToPickupTimes[newSlot] = newNaNArray(reqCapacity);
+		linkSlots.put(link.getId(), newSlot);
+		return newSlot;
+	}
+
+	private void releaseRequestSlot(int slot) {
+		requests[slot] = null;
+		reqToReqTimes[slot] = null;
+		reqSlotPool.release(slot);
+	}
+
+	private void growRequestCapacity() {
+		int newCapacity = 2 * reqCapacity;
+
+		requests = Arrays.copyOf(requests, newCapacity);
+		rideTimes = growNaNArray(rideTimes, newCapacity);
+
+		reqToReqTimes = Arrays.copyOf(reqToReqTimes, newCapacity);
+		for (int s = 0; s < reqCapacity; s++) {
+			if (reqToReqTimes[s] != null) {
+				reqToReqTimes[s] = growNaNArray(reqToReqTimes[s], newCapacity);
+			}
+		}
+
+		for (int s = 0; s < linkToPickupTimes.length; s++) {
+			if (linkToPickupTimes[s] != null) {
+				linkToPickupTimes[s] = growNaNArray(linkToPickupTimes[s], newCapacity);
+			}
+		}
+
+		reqCapacity = newCapacity;
+	}
+
+	private static double[] newNaNArray(int length) {
+		double[] array = new double[length];
+		Arrays.fill(array, Double.NaN);
+		return array;
+	}
+
+	private static double[] growNaNArray(double[] array, int newLength) {
+		int oldLength = array.length;
+		double[] newArray = Arrays.copyOf(array, newLength);
+		Arrays.fill(newArray, oldLength, newLength, Double.NaN);
+		return newArray;
+	}
+
+	/**
+	 * Reuses released slots before handing out new ones, so the arrays grow only with the peak number of entries.
+	 */
+	private static class SlotPool {
+		private int[] freeSlots = new int[INITIAL_CAPACITY];
+		private int freeCount = 0;
+		private int nextSlot = 0;
+
+		int acquire() {
+			return freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+		}
+
+		void release(int slot) {
+			if (freeCount == freeSlots.length) {
+				freeSlots = Arrays.copyOf(freeSlots, 2 * freeCount);
+			}
+			freeSlots[freeCount++] = slot;
+		}
+	}
+}
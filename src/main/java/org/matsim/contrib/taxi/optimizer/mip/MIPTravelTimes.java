@@ -0,0 +1,119 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+/**
+ * Travel times of a single MIP instance, indexed as in {@link MIPRequestData} (i, j) and
+ * {@link org.matsim.contrib.taxi.optimizer.VehicleData} (k); backed by {@link MIPTravelTimeCache}, or (once
+ * detached) by own arrays.
+ *
+ * @author michalm
+ */
+class MIPTravelTimes {
+	private final MIPTravelTimeCache cache;// null if detached
+	private final int[] reqSlots;// for each request, i
+	private final int[] linkSlots;// for each vehicle, k
+
+	// detached only; copies of the cache rows used by the instance (indexed by slots, as in the cache)
+	private final double[] rideTimes;
+	private final double[][] reqToReqTimes;
+	private final double[][] linkToPickupTimes;
+
+	MIPTravelTimes(MIPTravelTimeCache cache, int[] reqSlots, int[] linkSlots) {
+		this(cache, reqSlots, linkSlots, null, null, null);
+	}
+
+	private MIPTravelTimes(MIPTravelTimeCache cache, int[] reqSlots, int[] linkSlots, double[] rideTimes,
+			double[][] reqToReqTimes, double[][] linkToPickupTimes) {
+		this.cache = cache;
+		this.reqSlots = reqSlots;
+		this.linkSlots = linkSlots;
+		this.rideTimes = rideTimes;
+		this.reqToReqTimes = reqToReqTimes;
+		this.linkToPickupTimes = linkToPickupTimes;
+	}
+
+	/**
+	 * Copies the cache rows of the instance (all values must have been prefetched), so that they can be read by
+	 * another thread while the cache is being updated (e.g. requests evicted after pickup). Vehicles departing from
+	 * the same link share a row.
+	 */
+	MIPTravelTimes detach() {
+		return isDetached() ? this : detach(identity(linkSlots.length), identity(reqSlots.length));
+	}
+
+	private boolean isDetached() {
+		return cache == null;
+	}
+
+	/**
+	 * As {@link #detach()}, but only for a subset of vehicles and requests (re-indexed from 0). A detached instance
+	 * shares its (read-only) rows with the subset.
+	 *
+	 * @param vehicles
+	 *            k of each vehicle in the subset
+	 * @param requests
+	 *            i of each request in the subset
+	 */
+	MIPTravelTimes detach(int[] vehicles, int[] requests) {
+		int[] subsetReqSlots = new int[requests.length];
+		for (int i = 0; i < requests.length; i++) {
+			subsetReqSlots[i] = reqSlots[requests[i]];
+		}
+
+		int[] subsetLinkSlots = new int[vehicles.length];
+		for (int k = 0; k < vehicles.length; k++) {
+			subsetLinkSlots[k] = linkSlots[vehicles[k]];
+		}
+
+		if (isDetached()) {
+			return new MIPTravelTimes(null, subsetReqSlots, subsetLinkSlots, rideTimes, reqToReqTimes,
+					linkToPickupTimes);
+		}
+
+		return new MIPTravelTimes(null, subsetReqSlots, subsetLinkSlots, cache.copyRideTimes(),
+				cache.copyReqToReqRows(subsetReqSlots), cache.copyLinkToPickupRows(subsetLinkSlots));
+	}
+
+	private static int[] identity(int size) {
+		int[] indices = new int[size];
+		for (int i = 0; i < size; i++) {
+			indices[i] = i;
+		}
+		return indices;
+	}
+
+	// t_i: pickup->dropoff
+	double getRideTime(int i) {
+		return cache != null ? cache.getRideTime(reqSlots[i]) : rideTimes[reqSlots[i]];
+	}
+
+	// t_ij: dropoff(i)->pickup(j)
+	double getReqToReqTime(int i, int j) {
+		return cache != null ? cache.getReqToReqTime(reqSlots[i], reqSlots[j])
+				: reqToReqTimes[reqSlots[i]][reqSlots[j]];
+	}
+
+	// t_O_ki: departure(k)->pickup(i)
+	double getVehToReqTime(int k, int i) {
+		return cache != null ? cache.getLinkToPickupTime(linkSlots[k], reqSlots[i])
+				: linkToPickupTimes[linkSlots[k]][reqSlots[i]];
+	}
+}
@@ -0,0 +1,87 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.dvrp.data.Request;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+
+/**
+ * The last applied solution, keyed by vehicle and request ids, so that it can serve as the MIP start of the next
+ * instance (indices change between instances). Served (or otherwise missing) requests are dropped from the
+ * chains, the remaining ones are remapped to the new indices; new requests are then inserted by
+ * {@link MIPSolutionFinder}.
+ *
+ * @author michalm
+ */
+class MIPWarmStart {
+	private final Map<Id<Vehicle>, List<Id<Request>>> chains = new HashMap<>();
+
+	void update(MIPRequestData rData, VehicleData vData, MIPSolution solution) {
+		chains.clear();
+
+		int m = vData.getSize();
+		for (int k = 0; k < m; k++) {
+			List<Id<Request>> chain = new ArrayList<>();
+			for (int u = solution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = solution.successor[u]) {
+				chain.add(rData.requests[u - m].getId());
+			}
+
+			if (!chain.isEmpty()) {
+				chains.put(vData.getEntry(k).vehicle.getId(), chain);
+			}
+		}
+	}
+
+	/**
+	 * @return chains of the last solution in the new indices (see {@link MIPSolution}), without the requests not
+	 *         present in rData (and the vehicles not present in vData)
+	 */
+	int[] remapChains(MIPRequestData rData, VehicleData vData) {
+		int m = vData.getSize();
+		int[] successor = MIPSolution.createEmptySuccessors(m + rData.dimension);
+
+		for (int k = 0; k < m; k++) {
+			List<Id<Request>> chain = chains.get(vData.getEntry(k).vehicle.getId());
+			if (chain == null) {
+				continue;
+			}
+
+			int u = k;
+			for (Id<Request> id : chain) {
+				Integer i = rData.reqIdToIdx.get(id);
+				if (i != null) {// otherwise served (or beyond the planning horizon)
+					successor[u] = m + i;
+					u = m + i;
+				}
+			}
+		}
+
+		return successor;
+	}
+}
@@ -0,0 +1,439 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.gurobi.GurobiProfile;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.optimizer.VehicleData;
+import org.matsim.contrib.taxi.optimizer.mip.MIPProblem.MIPSolution;
+import org.matsim.contrib.taxi.run.TaxiConfigGroup;
+import org.matsim.contrib.taxi.scheduler.TaxiScheduler;
+
+/**
+ * Splits a large instance into spatial zones (k-means over the pickup coordinates; each vehicle joins the zone
+ * with the nearest centre), solves the zone MIPs in parallel and stitches the zone solutions together.
+ * <p>
+ * Since vehicles cannot serve requests of other zones, the optional boundary repair moves chains to idle vehicles
+ * of other zones that reach the first request of the chain (within TP_MAX) earlier.
+ *
+ * @author michalm
+ */
+class MIPZoneDecomposition {
+	static final int REQUESTS_PER_ZONE = 100;
+	static final int K_MEANS_ITERATIONS = 20;
+
+	private static final ExecutorService ZONE_EXECUTOR = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread thread = new Thread(r, "MIP zone");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private static class Zone {
+		private final int[] vehicles;// k of each zone vehicle
+		private final int[] requests;// i of each zone request
+		private final VehicleData vData;
+		private final MIPRequestData rData;
+		private final MIPTravelTimes travelTimes;
+
+		private Zone(int[] vehicles, int[] requests, VehicleData vData, MIPRequestData rData,
+				MIPTravelTimes travelTimes) {
+			this.vehicles = vehicles;
+			this.requests = requests;
+			this.vData = vData;
+			this.rData = rData;
+			this.travelTimes = travelTimes;
+		}
+	}
+
+	private final TaxiConfigGroup taxiCfg;
+	private final MIPTravelTimes travelTimes;
+	private final MIPRequestData rData;
+	private final VehicleData vData;
+	private final int n;// request count
+	private final int m;// vehicle count
+
+	private final List<Zone> zones = new ArrayList<>();
+
+	/**
+	 * Mobsim thread (the zone VehicleData are created from the current schedules).
+	 */
+	MIPZoneDecomposition(TaxiConfigGroup taxiCfg, TaxiScheduler scheduler, double time, MIPTravelTimes travelTimes,
+			MIPRequestData rData, VehicleData vData) {
+		this.taxiCfg = taxiCfg;
+		this.travelTimes = travelTimes.detach();// copied once, the zones share the rows
+		this.rData = rData;
+		this.vData = vData;
+
+		n = rData.dimension;
+		m = vData.getSize();
+
+		int[] vehZones = new int[m];
+		int[] reqZones = new int[n];
+		int zoneCount = partition(vehZones, reqZones);
+
+		Map<Id<Vehicle>, Integer> vehIdToIdx = new HashMap<>();
+		for (int k = 0; k < m; k++) {
+			vehIdToIdx.put(vData.getEntry(k).vehicle.getId(), k);
+		}
+
+		for (int z = 0; z < zoneCount; z++) {
+			int[] zoneRequests = indicesOf(reqZones, z);
+			if (zoneRequests.length == 0) {
+				continue;// nothing to be solved, the zone vehicles stay idle
+			}
+
+			List<Vehicle> zoneVehicleList = new ArrayList<>();
+			for (int k : indicesOf(vehZones, z)) {
+				zoneVehicleList.add(vData.getEntry(k).vehicle);
+			}
+
+			VehicleData zoneVData = new VehicleData(time, scheduler, zoneVehicleList.stream());
+			if (zoneVData.getSize() == 0) {
+				continue;// no vehicles available, the zone requests stay unplanned until the next optimization
+			}
+
+			int[] zoneVehicles = new int[zoneVData.getSize()];
+			for (int kz = 0; kz < zoneVehicles.length; kz++) {
+				zoneVehicles[kz] = vehIdToIdx.get(zoneVData.getEntry(kz).vehicle.getId());
+			}
+
+			TaxiRequest[] zoneReqArray = new TaxiRequest[zoneRequests.length];
+			for (int iz = 0; iz < zoneRequests.length; iz++) {
+				zoneReqArray[iz] = rData.requests[zoneRequests[iz]];
+			}
+
+			zones.add(new Zone(zoneVehicles, zoneRequests, zoneVData, new MIPRequestData(zoneReqArray),
+					travelTimes.detach(zoneVehicles, zoneRequests)));
+		}
+	}
+
+	/**
+	 * k-means over the pickup coordinates; zones without vehicles are merged into the nearest zone with vehicles.
+	 *
+	 * @return number of zones
+	 */
+	private int partition(int[] vehZones, int[] reqZones) {
+		int zoneCount = Math.max(1, Math.min(m, n / REQUESTS_PER_ZONE));
+		double[][] centres = new double[zoneCount][2];
+		for (int z = 0; z < zoneCount; z++) {
+			Coord coord = rData.requests[z * n / zoneCount].getFromLink().getCoord();// spread over the set
+			centres[z][0] = coord.getX();
+			centres[z][1] = coord.getY();
+		}
+
+		for (int iter = 0; iter < K_MEANS_ITERATIONS; iter++) {
+			boolean changed = false;
+			for (int i = 0; i < n; i++) {
+				int z = findNearestCentre(centres, null, rData.requests[i].getFromLink().getCoord());
+				changed |= z != reqZones[i] || iter == 0;
+				reqZones[i] = z;
+			}
+
+			if (!changed) {
+				break;
+			}
+
+			double[][] sums = new double[zoneCount][3];// x, y, count
+			for (int i = 0; i < n; i++) {
+				Coord coord = rData.requests[i].getFromLink().getCoord();
+				double[] sum = sums[reqZones[i]];
+				sum[0] += coord.getX();
+				sum[1] += coord.getY();
+				sum[2]++;
+			}
+
+			for (int z = 0; z < zoneCount; z++) {
+				if (sums[z][2] > 0) {// empty zones keep their centres
+					centres[z][0] = sums[z][0] / sums[z][2];
+					centres[z][1] = sums[z][1] / sums[z][2];
+				}
+			}
+		}
+
+		boolean[] hasVehicles = new boolean[zoneCount];
+		for (int k = 0; k < m; k++) {
+			vehZones[k] = findNearestCentre(centres, null, vData.getEntry(k).link.getCoord());
+			hasVehicles[vehZones[k]] = true;
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (!hasVehicles[reqZones[i]]) {
+				reqZones[i] = findNearestCentre(centres, hasVehicles, rData.requests[i].getFromLink().getCoord());
+			}
+		}
+
+		moveRequestsUnreachableInZone(vehZones, reqZones, zoneCount);
+		return zoneCount;
+	}
+
+	// a request that no vehicle of its zone reaches within TP_MAX (i.e. all vehicle arcs to it would be excluded in
+	// the zone MIP) moves to the zone of the vehicle that reaches it first (if any within TP_MAX)
+	private void moveRequestsUnreachableInZone(int[] vehZones, int[] reqZones, int zoneCount) {
+		int[][] zoneVehicles = new int[zoneCount][];
+		for (int z = 0; z < zoneCount; z++) {
+			zoneVehicles[z] = indicesOf(vehZones, z);
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (isReachable(zoneVehicles[reqZones[i]], i)) {
+				continue;
+			}
+
+			int bestK = -1;
+			double bestArrival = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < m; k++) {
+				double t_O_ki = travelTimes.getVehToReqTime(k, i);
+				double arrival = vData.getEntry(k).time + t_O_ki;
+				if (t_O_ki <= MIPGurobiSolver.TP_MAX && arrival < bestArrival) {
+					bestArrival = arrival;
+					bestK = k;
+				}
+			}
+
+			if (bestK >= 0) {
+				reqZones[i] = vehZones[bestK];
+			}
+		}
+	}
+
+	private boolean isReachable(int[] vehicles, int i) {
+		for (int k : vehicles) {
+			if (travelTimes.getVehToReqTime(k, i) <= MIPGurobiSolver.TP_MAX) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// allowedCentres: null means all
+	private static int findNearestCentre(double[][] centres, boolean[] allowedCentres, Coord coord) {
+		int nearest = -1;
+		double minDistanceSq = Double.POSITIVE_INFINITY;
+		for (int z = 0; z < centres.length; z++) {
+			if (allowedCentres != null && !allowedCentres[z]) {
+				continue;
+			}
+
+			double dx = centres[z][0] - coord.getX();
+			double dy = centres[z][1] - coord.getY();
+			double distanceSq = dx * dx + dy * dy;
+			if (distanceSq < minDistanceSq) {
+				minDistanceSq = distanceSq;
+				nearest = z;
+			}
+		}
+		return nearest;
+	}
+
+	private static int[] indicesOf(int[] zoneOfIndex, int zone) {
+		return IntStream.range(0, zoneOfIndex.length).filter(idx -> zoneOfIndex[idx] == zone)
+				.toArray();
+	}
+
+	/**
+	 * Any thread (uses only the snapshot).
+	 */
+	MIPSolution solve(MIPSolution initialSolution, boolean boundaryRepair) {
+		List<Future<MIPSolution>> zoneSolutions = new ArrayList<>();
+		for (Zone zone : zones) {
+			MIPSolution zoneStart = createZoneStart(zone, initialSolution);
+			zoneSolutions.add(ZONE_EXECUTOR.submit(() -> new MIPGurobiSolver(taxiCfg, zone.travelTimes,
+					zone.rData, zone.vData, GurobiProfile.ONLINE_ZONE).solve(zoneStart, MIPProblem.LATENCY_BUDGET,
+							null)));
+		}
+
+		int[] successor = MIPSolution.createEmptySuccessors(m + n);
+		double[] w = new double[n];
+		for (int z = 0; z < zones.size(); z++) {
+			Zone zone = zones.get(z);
+			MIPSolution zoneSolution;
+			try {
+				zoneSolution = zoneSolutions.get(z).get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+
+			int mz = zone.vehicles.length;
+			for (int uz = 0; uz < mz + zone.requests.length; uz++) {
+				int vz = zoneSolution.successor[uz];
+				if (vz != MIPSolution.NO_SUCCESSOR) {
+					successor[toGlobalNode(zone, uz)] = toGlobalNode(zone, vz);
+				}
+			}
+
+			for (int iz = 0; iz < zone.requests.length; iz++) {
+				w[zone.requests[iz]] = zoneSolution.w[iz];
+			}
+		}
+
+		MIPSolution solution = new MIPSolution(successor, w);
+		if (boundaryRepair) {
+			repairBoundaries(solution);
+		}
+		return solution;
+	}
+
+	private int toGlobalNode(Zone zone, int uz) {
+		int mz = zone.vehicles.length;
+		return uz < mz ? zone.vehicles[uz] : m + zone.requests[uz - mz];
+	}
+
+	// the initial (global) chains restricted to the zone; the zone requests served by vehicles of other zones are
+	// appended to the shortest zone chains; null if there is no initial solution (modes without init)
+	private MIPSolution createZoneStart(Zone zone, MIPSolution initialSolution) {
+		if (initialSolution == null) {
+			return null;
+		}
+
+		int mz = zone.vehicles.length;
+		int nz = zone.requests.length;
+		int[] zoneSuccessor = MIPSolution.createEmptySuccessors(mz + nz);
+
+		Map<Integer, Integer> reqToZoneReq = new HashMap<>();
+		for (int iz = 0; iz < nz; iz++) {
+			reqToZoneReq.put(zone.requests[iz], iz);
+		}
+
+		int[] lastNodes = new int[mz];
+		int[] chainLengths = new int[mz];
+		boolean[] isCovered = new boolean[nz];
+		for (int kz = 0; kz < mz; kz++) {
+			int last = kz;
+			int k = zone.vehicles[kz];
+			for (int u = initialSolution.successor[k]; u != MIPSolution.NO_SUCCESSOR; u = initialSolution.successor[u]) {
+				Integer iz = reqToZoneReq.get(u - m);
+				if (iz != null) {
+					zoneSuccessor[last] = mz + iz;
+					last = mz + iz;
+					chainLengths[kz]++;
+					isCovered[iz] = true;
+				}
+			}
+			lastNodes[kz] = last;
+		}
+
+		for (int iz = 0; iz < nz && mz > 0; iz++) {
+			if (!isCovered[iz]) {
+				int kz = 0;
+				for (int kz2 = 1; kz2 < mz; kz2++) {
+					if (chainLengths[kz2] < chainLengths[kz]) {
+						kz = kz2;
+					}
+				}
+				zoneSuccessor[lastNodes[kz]] = mz + iz;
+				lastNodes[kz] = mz + iz;
+				chainLengths[kz]++;
+			}
+		}
+
+		double[] zoneW = new double[nz];
+		for (int kz = 0; kz < mz; kz++) {
+			calcChainPickupTimes(zone.travelTimes, zone.rData, zone.vData, zoneSuccessor, kz, zoneW);
+		}
+		return new MIPSolution(zoneSuccessor, zoneW);
+	}
+
+	private void repairBoundaries(MIPSolution solution) {
+		boolean[] isIdle = new boolean[m];
+		for (int k = 0; k < m; k++) {
+			isIdle[k] = solution.successor[k] == MIPSolution.NO_SUCCESSOR;
+		}
+
+		double[] newW = new double[n];
+		for (int k = 0; k < m; k++) {
+			int first = solution.successor[k];
+			if (first == MIPSolution.NO_SUCCESSOR) {
+				continue;
+			}
+
+			int i = first - m;
+			int bestK = -1;
+			double bestArrival = solution.w[i];
+			for (int k2 = 0; k2 < m; k2++) {
+				if (!isIdle[k2]) {
+					continue;
+				}
+
+				double t_O_k2i = travelTimes.getVehToReqTime(k2, i);
+				double arrival = vData.getEntry(k2).time + t_O_k2i;
+				if (t_O_k2i <= MIPGurobiSolver.TP_MAX && arrival < bestArrival) {
+					bestArrival = arrival;
+					bestK = k2;
+				}
+			}
+
+			if (bestK < 0) {
+				continue;
+			}
+
+			// move the chain only if the total pickup time decreases (the later requests may get delayed)
+			solution.successor[bestK] = first;
+			double oldSum = calcChainPickupTimes(travelTimes, rData, vData, solution.successor, k, solution.w);
+			double newSum = calcChainPickupTimes(travelTimes, rData, vData, solution.successor, bestK, newW);
+			if (newSum < oldSum) {
+				for (int u = first; u != MIPSolution.NO_SUCCESSOR; u = solution.successor[u]) {
+					solution.w[u - m] = newW[u - m];
+				}
+				solution.successor[k] = MIPSolution.NO_SUCCESSOR;
+				isIdle[bestK] = false;
+				isIdle[k] = true;
+			} else {
+				solution.successor[bestK] = MIPSolution.NO_SUCCESSOR;
+			}
+		}
+	}
+
+	/**
+	 * Computes w along the chain of vehicle k (earliest possible pickups).
+	 *
+	 * @return sum of w over the chain
+	 */
+	private double calcChainPickupTimes(MIPTravelTimes travelTimes, MIPRequestData rData, VehicleData vData,
+			int[] successor, int k, double[] w) {
+		int m = vData.getSize();
+		double t_P = taxiCfg.getPickupDuration();
+		double t_D = taxiCfg.getDropoffDuration();
+
+		double departure = vData.getEntry(k).time;
+		int prev = -1;
+		double sum = 0;
+		for (int u = successor[k]; u != MIPSolution.NO_SUCCESSOR; u = successor[u]) {
+			int i = u - m;
+			double t = prev < 0 ? travelTimes.getVehToReqTime(k, i) : travelTimes.getReqToReqTime(prev, i);
+			// t may be +Inf (screened drive); w_i clamped so that the sum stays comparable
+			double e_i = rData.requests[i].getEarliestStartTime();
+			w[i] = Math.min(Math.max(e_i, departure + t), e_i + MIPGurobiSolver.W_MAX);
+			sum += w[i];
+
+			departure = w[i] + t_P + travelTimes.getRideTime(i) + t_D;
+			prev = i;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,81 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+
+/**
+ * Link-to-link travel times used for building MIP instances (see {@link MIPTravelTimeCache}).
+ *
+ * @author michalm
+ */
+interface PathTravelTimeCalculator {
+	/**
+	 * Moves to the given (simulated) time; afterwards the travel times may differ (see {@link #getVersion()}).
+	 */
+	void updateTime(double time);
+
+	/**
+	 * @return changes whenever the travel times may have changed, so that the values cached elsewhere can be
+	 *         invalidated
+	 */
+	int getVersion();
+
+	double calcTravelTime(Link fromLink, Link toLink);
+
+	/**
+	 * Bulk variant of {@link #calcTravelTime(Link, Link)}.
+	 *
+	 * @return travel time for each (fromLink, toLink) pair
+	 */
+	double[][] calcTravelTimes(List<Link> fromLinks, List<Link> toLinks);
+
+	/**
+	 * Pairwise variant of {@link #calcTravelTime(Link, Link)}, e.g. for ride times (instead of the diagonal of
+	 * {@link #calcTravelTimes(List, List)}).
+	 *
+	 * @return travel time for each (fromLinks[p], toLinks[p]) pair
+	 */
+	default double[] calcPairwiseTravelTimes(List<Link> fromLinks, List<Link> toLinks) {
+		double[] times = new double[fromLinks.size()];
+		for (int p = 0; p < times.length; p++) {
+			times[p] = calcTravelTime(fromLinks.get(p), toLinks.get(p));
+		}
+		return times;
+	}
+
+	/**
+	 * @param nodeToNodeTime
+	 *            fromLink.toNode -> toLink.fromNode
+	 */
+	static double calcLinkToLinkTime(Link fromLink, Link toLink, double nodeToNodeTime) {
+		if (fromLink == toLink) {
+			return 0;
+		}
+
+		double tt = 1;// getting over the first node
+		tt += nodeToNodeTime;// travelling along the path
+		tt += toLink.getLength() / toLink.getFreespeed();// travelling the last link (approx.)
+		return tt;
+	}
+}
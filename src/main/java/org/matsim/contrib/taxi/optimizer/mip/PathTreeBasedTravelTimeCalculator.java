@@ -19,24 +19,297 @@
 
 package org.matsim.contrib.taxi.optimizer.mip;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.matsim.api.core.v01.network.Link;
-import org.matsim.contrib.dvrp.router.DijkstraWithDijkstraTreeCache;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Travel times looked up in one-to-all path trees. Trees are kept per (time bin, root node, direction) and
+ * computed with the link travel times of their bin; lookups refer to the current bin (see
+ * {@link #updateTime(double)}). A forward tree gives times from its root (origin), a backward tree to its root
+ * (destination). For bulk requests, the direction is chosen so that the fewest trees have to be computed, e.g.
+ * backward trees rooted at n pickups instead of forward trees rooted at m (>> n) vehicle positions.
+ * <p>
+ * Trees are kept in a {@link PathTreeStore} of a fixed byte budget (trees not read recently evicted first); trees of
+ * past bins are evicted as soon as the time moves on. With time-dependent travel times, the trees of the current
+ * bin are periodically recomputed in the background, so that they follow the congestion observed in the
+ * simulation.
+ *
+ * @author michalm
+ */
+public class PathTreeBasedTravelTimeCalculator implements PathTravelTimeCalculator {
+	public static final long DEFAULT_TREE_BYTE_BUDGET = 512L << 20;// 512 MB
+	public static final double DEFAULT_REFRESH_INTERVAL = 5 * 60;// [s] simulated time
+
+	// trees are recomputed only if the time of at least one link has changed by more than this (relative)
+	static final double MIN_LINK_TIME_CHANGE = 0.1;
+
+	private final PathTreeNetwork treeNetwork;
+	private final TravelTime travelTime;
+	private final double binSize;// [s]; Double.POSITIVE_INFINITY: one bin for the whole day (static travel times)
+	private final double refreshInterval;// [s]; Double.POSITIVE_INFINITY: no refreshing
+	private final ForkJoinPool pool;
+
+	private final PathTreeStore trees;// key: (bin, direction, root)
+	private final AtomicLong forwardTreeCount = new AtomicLong();// computed so far
+	private final AtomicLong backwardTreeCount = new AtomicLong();
+	private final Map<Integer, float[]> binLinkTimes = new ConcurrentHashMap<>();
 
-public class PathTreeBasedTravelTimeCalculator {
-	private final DijkstraWithDijkstraTreeCache dijkstraTrees;
+	private volatile int currentBin = 0;
+	private volatile int version = 0;// changes whenever the times returned may have changed
+	private double lastRefreshTime = 0;
+	private ForkJoinTask<?> refreshing;
 
-	public PathTreeBasedTravelTimeCalculator(DijkstraWithDijkstraTreeCache dijkstraTrees) {
-		this.dijkstraTrees = dijkstraTrees;
+	/**
+	 * Static travel times (e.g. FreeSpeedTravelTime): a single bin, no refreshing.
+	 */
+	public PathTreeBasedTravelTimeCalculator(Network network, TravelTime travelTime) {
+		this(network, travelTime, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, DEFAULT_TREE_BYTE_BUDGET,
+				false, Runtime.getRuntime().availableProcessors());
 	}
 
+	/**
+	 * @param treeByteBudget
+	 *            memory for storing trees (4 bytes per node and tree)
+	 * @param offHeapTrees
+	 *            trees stored in direct byte buffers
+	 */
+	public PathTreeBasedTravelTimeCalculator(Network network, TravelTime travelTime, double binSize,
+			double refreshInterval, long treeByteBudget, boolean offHeapTrees, int threads) {
+		this.travelTime = travelTime;
+		this.binSize = binSize;
+		this.refreshInterval = refreshInterval;
+
+		treeNetwork = new PathTreeNetwork(network);
+		pool = new ForkJoinPool(threads);
+		trees = new PathTreeStore(treeNetwork.getNodeCount(), treeByteBudget, offHeapTrees);
+	}
+
+	/**
+	 * Moves to the bin of the given (simulated) time. Trees of the past bins are evicted. Every refreshInterval,
+	 * the trees of the current bin are recomputed in the background with the latest link travel times (if they
+	 * have changed noticeably, see MIN_LINK_TIME_CHANGE).
+	 * <p>
+	 * Mobsim thread: the link travel times are read here, only the trees are computed in the background.
+	 */
+	@Override
+	public synchronized void updateTime(double time) {
+		int bin = getBin(time);
+		if (bin != currentBin) {
+			currentBin = bin;
+			lastRefreshTime = time;
+			evictPastBins(bin);
+			version++;
+			return;
+		}
+
+		if (time - lastRefreshTime >= refreshInterval && (refreshing == null || refreshing.isDone())) {
+			lastRefreshTime = time;
+			float[] linkTimes = treeNetwork.calcLinkTimes(travelTime, time);
+			float[] oldLinkTimes = binLinkTimes.putIfAbsent(bin, linkTimes);// no trees computed yet if absent
+			if (oldLinkTimes != null && haveChanged(oldLinkTimes, linkTimes)) {
+				refreshing = pool.submit(() -> refreshBin(bin, linkTimes));
+			}
+		}
+	}
+
+	private static boolean haveChanged(float[] oldLinkTimes, float[] newLinkTimes) {
+		for (int l = 0; l < oldLinkTimes.length; l++) {
+			if (Math.abs(newLinkTimes[l] - oldLinkTimes[l]) > MIN_LINK_TIME_CHANGE * oldLinkTimes[l]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int getVersion() {// new bin, refreshed trees
+		return version;
+	}
+
+	/**
+	 * Computes (in parallel) the forward trees of the current bin for all origins that have not been computed yet.
+	 * Afterwards, {@link #calcTravelTime(Link, Link)} is a pure lookup for these origins (unless evicted).
+	 */
+	public void calcTrees(Collection<Node> origins) {
+		calcMissingTrees(origins.stream().mapToInt(treeNetwork::getIndex).distinct().toArray(), false);
+	}
+
+	private void calcMissingTrees(int[] roots, boolean backward) {
+		int bin = currentBin;
+		int[] missingRoots = Arrays.stream(roots).filter(r -> !trees.contains(key(bin, backward, r))).toArray();
+		if (missingRoots.length == 0) {
+			return;
+		}
+
+		float[] linkTimes = getLinkTimes(bin);
+		pool.submit(() -> Arrays.stream(missingRoots).parallel()//
+				.forEach(r -> trees.put(key(bin, backward, r), calcTree(r, linkTimes, backward))))//
+				.join();
+	}
+
+	private float[] calcTree(int root, float[] linkTimes, boolean backward) {
+		if (backward) {
+			backwardTreeCount.incrementAndGet();
+			return treeNetwork.calcBackwardTree(root, linkTimes);
+		} else {
+			forwardTreeCount.incrementAndGet();
+			return treeNetwork.calcTree(root, linkTimes);
+		}
+	}
+
+	@Override
 	public double calcTravelTime(Link fromLink, Link toLink) {
-		if (fromLink == toLink) {
-			return 0;
+		return fromLink == toLink ? 0
+				: PathTravelTimeCalculator.calcLinkToLinkTime(fromLink, toLink,
+						getTime(fromLink.getToNode(), toLink.getFromNode()));
+	}
+
+	/**
+	 * Computes the missing trees (in parallel) in the direction that requires fewer Dijkstra runs: forward trees
+	 * rooted at the origins, or backward trees rooted at the destinations (given the trees already stored). Then
+	 * looks up all pairs.
+	 */
+	@Override
+	public double[][] calcTravelTimes(List<Link> fromLinks, List<Link> toLinks) {
+		int[] origins = fromLinks.stream().mapToInt(l -> treeNetwork.getIndex(l.getToNode())).toArray();
+		int[] destinations = toLinks.stream().mapToInt(l -> treeNetwork.getIndex(l.getFromNode())).toArray();
+		calcMissingTrees(origins, destinations);
+
+		double[][] times = new double[fromLinks.size()][toLinks.size()];
+		for (int f = 0; f < fromLinks.size(); f++) {
+			for (int t = 0; t < toLinks.size(); t++) {
+				Link fromLink = fromLinks.get(f);
+				Link toLink = toLinks.get(t);
+				times[f][t] = fromLink == toLink ? 0
+						: PathTravelTimeCalculator.calcLinkToLinkTime(fromLink, toLink,
+								getTime(origins[f], destinations[t]));
+			}
+		}
+		return times;
+	}
+
+	/**
+	 * Only the pairs are looked up, in the trees computed as in {@link #calcTravelTimes(List, List)}.
+	 */
+	@Override
+	public double[] calcPairwiseTravelTimes(List<Link> fromLinks, List<Link> toLinks) {
+		int[] origins = fromLinks.stream().mapToInt(l -> treeNetwork.getIndex(l.getToNode())).toArray();
+		int[] destinations = toLinks.stream().mapToInt(l -> treeNetwork.getIndex(l.getFromNode())).toArray();
+		calcMissingTrees(origins, destinations);
+
+		double[] times = new double[fromLinks.size()];
+		for (int p = 0; p < times.length; p++) {
+			Link fromLink = fromLinks.get(p);
+			Link toLink = toLinks.get(p);
+			times[p] = fromLink == toLink ? 0
+					: PathTravelTimeCalculator.calcLinkToLinkTime(fromLink, toLink,
+							getTime(origins[p], destinations[p]));
+		}
+		return times;
+	}
+
+	// forward trees rooted at the origins, or backward trees rooted at the destinations, whichever fewer are missing
+	private void calcMissingTrees(int[] origins, int[] destinations) {
+		int bin = currentBin;
+		int[] distinctOrigins = Arrays.stream(origins).distinct().toArray();
+		int[] distinctDestinations = Arrays.stream(destinations).distinct().toArray();
+		long missingForward = Arrays.stream(distinctOrigins).filter(o -> !trees.contains(key(bin, false, o))).count();
+		long missingBackward = Arrays.stream(distinctDestinations).filter(d -> !trees.contains(key(bin, true, d)))
+				.count();
+
+		if (missingBackward < missingForward) {
+			calcMissingTrees(distinctDestinations, true);
+		} else {
+			calcMissingTrees(distinctOrigins, false);
 		}
+	}
+
+	private float getTime(Node origin, Node destination) {
+		return getTime(treeNetwork.getIndex(origin), treeNetwork.getIndex(destination));
+	}
+
+	// looks up any stored tree (forward, then backward); computes a forward tree if none
+	private float getTime(int o, int d) {
+		int bin = currentBin;
+		float time = trees.getTime(key(bin, false, o), d);
+		if (Float.isNaN(time)) {
+			time = trees.getTime(key(bin, true, d), o);
+		}
+
+		if (Float.isNaN(time)) {// not stored (yet or any more)
+			float[] tree = calcTree(o, getLinkTimes(bin), false);
+			trees.put(key(bin, false, o), tree);
+			time = tree[d];
+		}
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return trees + ", computed forward/backward=" + forwardTreeCount + "/" + backwardTreeCount;
+	}
+
+	private float[] getLinkTimes(int bin) {
+		return binLinkTimes.computeIfAbsent(bin,
+				b -> treeNetwork.calcLinkTimes(travelTime, Double.isInfinite(binSize) ? 0 : b * binSize));
+	}
+
+	// pool thread; linkTimes read by the mobsim thread (see updateTime)
+	private void refreshBin(int bin, float[] linkTimes) {
+		long[] keys = Arrays.stream(trees.getKeys()).filter(key -> binOf(key) == bin).toArray();
+
+		List<float[]> newTrees = new ArrayList<>(keys.length);
+		Arrays.stream(keys).parallel().mapToObj(key -> calcTree(rootOf(key), linkTimes, isBackward(key)))
+				.forEachOrdered(newTrees::add);
+
+		synchronized (this) {
+			if (bin != currentBin) {
+				return;// moved on to the next bin meanwhile (and the trees of this bin have been evicted)
+			}
+
+			binLinkTimes.put(bin, linkTimes);
+			for (int idx = 0; idx < keys.length; idx++) {
+				trees.put(keys[idx], newTrees.get(idx));
+			}
+			version++;
+		}
+	}
+
+	private void evictPastBins(int bin) {
+		binLinkTimes.keySet().removeIf(b -> b < bin);
+		trees.removeIf(key -> binOf(key) < bin);
+	}
+
+	private int getBin(double time) {
+		return Double.isInfinite(binSize) ? 0 : (int)(time / binSize);
+	}
+
+	// bits: bin (31), direction (1), root (32)
+	private static long key(int bin, boolean backward, int root) {
+		return ((long)bin << 33) | (backward ? 1L << 32 : 0) | root;
+	}
+
+	private static int binOf(long key) {
+		return (int)(key >>> 33);
+	}
+
+	private static boolean isBackward(long key) {
+		return (key & (1L << 32)) != 0;
+	}
 
-		double tt = 1;// getting over the first node
-		tt += dijkstraTrees.getTree(fromLink.getToNode(), 0).getTime(toLink.getFromNode());// travelling along the path
-		tt += toLink.getLength() / toLink.getFreespeed();// travelling the last link (approx.)
-		return tt;
+	private static int rootOf(long key) {
+		return (int)key;
 	}
 }
@@ -0,0 +1,274 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Array-based (CSR) copy of the network for computing one-to-all travel time trees. Unlike
+ * {@link org.matsim.contrib.dvrp.router.DijkstraWithDijkstraTreeCache}, {@link #calcTree(int, float[])} does not
+ * share any state between calls, so many trees can be computed in parallel. Backward trees (to a destination)
+ * are computed on the reversed network ({@link #calcBackwardTree(int, float[])}). Link travel times are passed
+ * separately ({@link #calcLinkTimes(TravelTime, double)}), so the same topology serves all time bins.
+ *
+ * @author michalm
+ */
+class PathTreeNetwork {
+	private final Node[] nodes;
+	private final Map<Id<Node>, Integer> nodeIndices;
+
+	// outgoing links of node u: [firstOutLink[u], firstOutLink[u + 1])
+	private final int[] firstOutLink;
+	private final int[] linkToNode;
+	private final Link[] links;
+
+	// incoming links of node v (reversed network): inLinks[firstInLink[v]] ... inLinks[firstInLink[v + 1] - 1]
+	private final int[] firstInLink;
+	private final int[] inLinks;
+	private final int[] linkFromNode;
+
+	private final ThreadLocal<NodeHeap> heaps;
+
+	PathTreeNetwork(Network network) {
+		int nodeCount = network.getNodes().size();
+		nodes = network.getNodes().values().toArray(new Node[nodeCount]);
+		nodeIndices = new HashMap<>(2 * nodeCount);
+		for (int u = 0; u < nodeCount; u++) {
+			nodeIndices.put(nodes[u].getId(), u);
+		}
+
+		int linkCount = network.getLinks().size();
+		firstOutLink = new int[nodeCount + 1];
+		linkToNode = new int[linkCount];
+		links = new Link[linkCount];
+
+		int l = 0;
+		for (int u = 0; u < nodeCount; u++) {
+			firstOutLink[u] = l;
+			for (Link link : nodes[u].getOutLinks().values()) {
+				linkToNode[l] = nodeIndices.get(link.getToNode().getId());
+				links[l] = link;
+				l++;
+			}
+		}
+		firstOutLink[nodeCount] = l;
+
+		linkFromNode = new int[linkCount];
+		firstInLink = new int[nodeCount + 1];
+		for (int u = 0; u < nodeCount; u++) {
+			for (int ol = firstOutLink[u]; ol < firstOutLink[u + 1]; ol++) {
+				linkFromNode[ol] = u;
+				firstInLink[linkToNode[ol] + 1]++;
+			}
+		}
+		for (int v = 0; v < nodeCount; v++) {
+			firstInLink[v + 1] += firstInLink[v];
+		}
+
+		inLinks = new int[linkCount];
+		int[] nextInLink = Arrays.copyOf(firstInLink, nodeCount);
+		for (int ol = 0; ol < linkCount; ol++) {
+			inLinks[nextInLink[linkToNode[ol]]++] = ol;
+		}
+
+		heaps = ThreadLocal.withInitial(() -> new NodeHeap(nodeCount));
+	}
+
+	int getNodeCount() {
+		return nodes.length;
+	}
+
+	int getIndex(Node node) {
+		return nodeIndices.get(node.getId());
+	}
+
+	// not to be modified
+	Map<Id<Node>, Integer> getNodeIndices() {
+		return nodeIndices;
+	}
+
+	// outgoing links of node u: [firstOutLink[u], firstOutLink[u + 1]); not to be modified
+	int[] getFirstOutLinks() {
+		return firstOutLink;
+	}
+
+	// not to be modified
+	int[] getLinkToNodes() {
+		return linkToNode;
+	}
+
+	/**
+	 * @return travel times of all links (in the CSR order) when entered at the given time
+	 */
+	float[] calcLinkTimes(TravelTime travelTime, double time) {
+		float[] linkTimes = new float[links.length];
+		for (int l = 0; l < links.length; l++) {
+			linkTimes[l] = (float)travelTime.getLinkTravelTime(links[l], time, null, null);
+		}
+		return linkTimes;
+	}
+
+	/**
+	 * @return travel times from the origin to all nodes (Float.POSITIVE_INFINITY if unreachable)
+	 */
+	float[] calcTree(int origin, float[] linkTimes) {
+		return calcTree(origin, linkTimes, firstOutLink, null, linkToNode);
+	}
+
+	/**
+	 * Tree on the reversed network.
+	 *
+	 * @return travel times from all nodes to the destination (Float.POSITIVE_INFINITY if unreachable)
+	 */
+	float[] calcBackwardTree(int destination, float[] linkTimes) {
+		return calcTree(destination, linkTimes, firstInLink, inLinks, linkFromNode);
+	}
+
+	/**
+	 * @param adjLinks
+	 *            links adjacent to node u: adjLinks[first[u]] ... adjLinks[first[u + 1] - 1]; null: the positions
+	 *            themselves are the links
+	 * @param adjNodes
+	 *            for each link, the node at the other end
+	 */
+	private float[] calcTree(int root, float[] linkTimes, int[] first, int[] adjLinks, int[] adjNodes) {
+		float[] times = new float[nodes.length];
+		Arrays.fill(times, Float.POSITIVE_INFINITY);
+		times[root] = 0;
+
+		NodeHeap heap = heaps.get();
+		heap.clear();
+		heap.decreaseKey(root, 0);
+
+		while (!heap.isEmpty()) {
+			int u = heap.poll();
+			float time_u = times[u];
+
+			for (int p = first[u]; p < first[u + 1]; p++) {
+				int l = adjLinks == null ? p : adjLinks[p];
+				int v = adjNodes[l];
+				float time_v = time_u + linkTimes[l];
+				if (time_v < times[v]) {
+					times[v] = time_v;
+					heap.decreaseKey(v, time_v);
+				}
+			}
+		}
+
+		return times;
+	}
+
+	/**
+	 * Binary min-heap of node indices with decrease-key; reused by consecutive trees of the same thread.
+	 */
+	static class NodeHeap {
+		private final int[] heap;
+		private final int[] positions;// -1: not in the heap
+		private final float[] keys;
+		private int size;
+
+		NodeHeap(int nodeCount) {
+			heap = new int[nodeCount];
+			positions = new int[nodeCount];
+			keys = new float[nodeCount];
+			Arrays.fill(positions, -1);
+		}
+
+		void clear() {
+			for (int p = 0; p < size; p++) {
+				positions[heap[p]] = -1;
+			}
+			size = 0;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void decreaseKey(int node, float key) {
+			int p = positions[node];
+			if (p < 0) {
+				p = size++;
+			}
+			keys[node] = key;
+			siftUp(p, node);
+		}
+
+		float peekKey() {
+			return keys[heap[0]];
+		}
+
+		int poll() {
+			int top = heap[0];
+			positions[top] = -1;
+
+			int last = heap[--size];
+			if (size > 0) {
+				siftDown(0, last);
+			}
+			return top;
+		}
+
+		private void siftUp(int p, int node) {
+			float key = keys[node];
+			while (p > 0) {
+				int parent = (p - 1) >>> 1;
+				int parentNode = heap[parent];
+				if (keys[parentNode] <= key) {
+					break;
+				}
+				place(p, parentNode);
+				p = parent;
+			}
+			place(p, node);
+		}
+
+		private void siftDown(int p, int node) {
+			float key = keys[node];
+			int half = size >>> 1;
+			while (p < half) {
+				int child = 2 * p + 1;
+				int right = child + 1;
+				if (right < size && keys[heap[right]] < keys[heap[child]]) {
+					child = right;
+				}
+				if (key <= keys[heap[child]]) {
+					break;
+				}
+				place(p, heap[child]);
+				p = child;
+			}
+			place(p, node);
+		}
+
+		private void place(int p, int node) {
+			heap[p] = node;
+			positions[node] = p;
+		}
+	}
+}
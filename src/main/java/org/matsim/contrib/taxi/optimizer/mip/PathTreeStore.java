@@ -0,0 +1,243 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+
+/**
+ * Fixed-size slots for path trees (arrival times only, indexed by node), bounded by a byte budget; once the budget
+ * is used up, a tree not read since the last eviction round is evicted (second-chance approximation of LRU). Slots
+ * are either on-heap {@code float[]} or (off-heap) parts of direct {@link ByteBuffer} slabs, which keeps large tree
+ * sets out of the GC's way.
+ * <p>
+ * Lookups ({@link #contains(long)}, {@link #getTime(long, int)}) do not lock: the slot is found in a concurrent
+ * index and read optimistically (validated with the stamp of the slot, which changes whenever the slot is
+ * rewritten). Modifications are synchronized.
+ *
+ * @author michalm
+ */
+class PathTreeStore {
+	private static final int MAX_SLAB_BYTES = 256 << 20;// 256 MB
+
+	private final int nodeCount;
+	private final int maxSlots;
+	private final boolean offHeap;
+
+	private final float[][] heapSlots;// on-heap only
+	private final FloatBuffer[] slabs;// off-heap only
+	private final int slotsPerSlab;// off-heap only
+
+	private final Map<Long, Integer> slotIndex = new ConcurrentHashMap<>();// for lookups
+	private final long[] slotKeys;// key stored in each slot
+	private final StampedLock[] slotStamps;// write-locked while a slot is being rewritten
+	private final AtomicIntegerArray referenced;// 1: read since the last eviction round
+
+	private final LinkedHashMap<Long, Integer> slotsByKey = new LinkedHashMap<>();// insertion-ordered
+	private final Deque<Integer> freeSlots = new ArrayDeque<>();
+	private int nextSlot = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private long evictions = 0;
+
+	PathTreeStore(int nodeCount, long byteBudget, boolean offHeap) {
+		this.nodeCount = nodeCount;
+		this.offHeap = offHeap;
+
+		long treeBytes = 4L * nodeCount;
+		maxSlots = (int)Math.max(1, Math.min(Integer.MAX_VALUE, byteBudget / treeBytes));
+
+		if (offHeap) {
+			slotsPerSlab = (int)Math.max(1, Math.min(maxSlots, MAX_SLAB_BYTES / treeBytes));
+			slabs = new FloatBuffer[(maxSlots + slotsPerSlab - 1) / slotsPerSlab];// allocated lazily
+			heapSlots = null;
+		} else {
+			slotsPerSlab = 0;
+			slabs = null;
+			heapSlots = new float[maxSlots][];// allocated lazily
+		}
+
+		slotKeys = new long[maxSlots];
+		slotStamps = new StampedLock[maxSlots];
+		for (int slot = 0; slot < maxSlots; slot++) {
+			slotStamps[slot] = new StampedLock();
+		}
+		referenced = new AtomicIntegerArray(maxSlots);
+	}
+
+	boolean contains(long key) {
+		return slotIndex.containsKey(key);
+	}
+
+	/**
+	 * Lock-free (falls back to locking only if the slot is being rewritten concurrently).
+	 *
+	 * @return travel time to the node, or Float.NaN if the tree is not stored
+	 */
+	float getTime(long key, int node) {
+		Integer slot = slotIndex.get(key);
+		if (slot != null) {
+			StampedLock slotStamp = slotStamps[slot];
+			long stamp = slotStamp.tryOptimisticRead();
+			float time = slotKeys[slot] == key ? readTime(slot, node) : Float.NaN;
+			if (slotStamp.validate(stamp)) {
+				return recordLookup(slot, time);
+			}
+		}
+
+		synchronized (this) {// slow path (slot rewritten meanwhile)
+			slot = slotsByKey.get(key);
+			return recordLookup(slot, slot == null ? Float.NaN : readTime(slot, node));
+		}
+	}
+
+	// may see an inconsistent state outside the lock, validated by the caller
+	private float readTime(int slot, int node) {
+		if (offHeap) {
+			FloatBuffer slab = slabs[slot / slotsPerSlab];
+			return slab == null ? Float.NaN : slab.get(getSlabOffset(slot) + node);
+		} else {
+			float[] tree = heapSlots[slot];
+			return tree == null ? Float.NaN : tree[node];
+		}
+	}
+
+	private float recordLookup(Integer slot, float time) {
+		if (Float.isNaN(time)) {
+			misses.increment();
+		} else {
+			hits.increment();
+			if (referenced.get(slot) == 0) {
+				referenced.set(slot, 1);
+			}
+		}
+		return time;
+	}
+
+	synchronized void put(long key, float[] tree) {
+		Integer slot = slotsByKey.get(key);
+		if (slot == null) {
+			slot = acquireSlot();
+			slotsByKey.put(key, slot);
+		}
+
+		long stamp = slotStamps[slot].writeLock();
+		try {
+			slotKeys[slot] = key;
+			if (offHeap) {
+				FloatBuffer slab = getSlab(slot).duplicate();
+				slab.position(getSlabOffset(slot));
+				slab.put(tree, 0, nodeCount);
+			} else {
+				heapSlots[slot] = tree;// trees are never modified after having been computed
+			}
+		} finally {
+			slotStamps[slot].unlockWrite(stamp);
+		}
+
+		referenced.set(slot, 0);
+		slotIndex.put(key, slot);
+	}
+
+	synchronized long[] getKeys() {
+		return slotsByKey.keySet().stream().mapToLong(Long::longValue).toArray();
+	}
+
+	synchronized void removeIf(LongPredicate keyPredicate) {
+		Iterator<Map.Entry<Long, Integer>> iter = slotsByKey.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Integer> e = iter.next();
+			if (keyPredicate.test(e.getKey())) {
+				slotIndex.remove(e.getKey());
+				releaseSlot(e.getValue());
+				iter.remove();
+			}
+		}
+	}
+
+	private int acquireSlot() {
+		if (!freeSlots.isEmpty()) {
+			return freeSlots.pop();
+		}
+
+		if (nextSlot < maxSlots) {
+			return nextSlot++;
+		}
+
+		// evict the eldest tree not read recently; the ones read get a second chance (moved to the end)
+		for (int round = 0;; round++) {
+			Map.Entry<Long, Integer> eldest = slotsByKey.entrySet().iterator().next();
+			long key = eldest.getKey();
+			int slot = eldest.getValue();
+			slotsByKey.remove(key);
+
+			if (referenced.get(slot) == 1 && round < maxSlots) {
+				referenced.set(slot, 0);
+				slotsByKey.put(key, slot);
+				continue;
+			}
+
+			slotIndex.remove(key);
+			evictions++;
+			return slot;
+		}
+	}
+
+	private void releaseSlot(int slot) {
+		if (!offHeap) {
+			long stamp = slotStamps[slot].writeLock();
+			heapSlots[slot] = null;
+			slotStamps[slot].unlockWrite(stamp);
+		}
+		freeSlots.push(slot);
+	}
+
+	private FloatBuffer getSlab(int slot) {
+		int s = slot / slotsPerSlab;
+		if (slabs[s] == null) {
+			slabs[s] = ByteBuffer.allocateDirect(4 * nodeCount * slotsPerSlab).order(ByteOrder.nativeOrder())
+					.asFloatBuffer();
+		}
+		return slabs[s];
+	}
+
+	private int getSlabOffset(int slot) {
+		return (slot % slotsPerSlab) * nodeCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "trees=" + slotsByKey.size() + "/" + maxSlots + (offHeap ? " (off-heap)" : "") + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions;
+	}
+}
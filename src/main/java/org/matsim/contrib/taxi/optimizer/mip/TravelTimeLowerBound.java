@@ -0,0 +1,51 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+/**
+ * Admissible (never overestimating) link-to-link travel times: beeline distance at the maximum free speed of the
+ * network. Assumes that no link is shorter than the beeline between its nodes and that no link is traversed
+ * faster than at its free speed (true for the travel times observed in the simulation and for the free-flow
+ * ones).
+ *
+ * @author michalm
+ */
+class TravelTimeLowerBound {
+	private final double maxFreespeed;
+
+	TravelTimeLowerBound(Network network) {
+		double max = 0;
+		for (Link link : network.getLinks().values()) {
+			max = Math.max(max, link.getFreespeed());
+		}
+		maxFreespeed = max;
+	}
+
+	double calcLowerBound(Link fromLink, Link toLink) {
+		double beeline = CoordUtils.calcEuclideanDistance(fromLink.getToNode().getCoord(),
+				toLink.getFromNode().getCoord());
+		return PathTravelTimeCalculator.calcLinkToLinkTime(fromLink, toLink, beeline / maxFreespeed);
+	}
+}
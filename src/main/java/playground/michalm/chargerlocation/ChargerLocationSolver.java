@@ -19,6 +19,9 @@
 
 package playground.michalm.chargerlocation;
 
+import org.matsim.contrib.gurobi.GurobiEnvPool;
+import org.matsim.contrib.gurobi.GurobiProfile;
+
 import gurobi.*;
 import playground.michalm.chargerlocation.ChargerLocationProblem.ChargerLocationSolution;
 
@@ -26,6 +29,7 @@ import playground.michalm.chargerlocation.ChargerLocationProblem.ChargerLocation
 public class ChargerLocationSolver
 {
     private final ChargerLocationProblem problem;
+    private final GurobiProfile profile = GurobiProfile.CHARGER_SWEEP;
 
     private GRBModel model;
     private GRBVar[] xVar;//charging station selection, j
@@ -40,50 +44,42 @@ public class ChargerLocationSolver
 
     public ChargerLocationSolution solve(ChargerLocationSolution initialSolution)
     {
-        try {
-            model = new GRBModel(new GRBEnv());
-
-            // this is the internal model (a copy of that passed to the constructor)
-            GRBEnv env = model.getEnv();
+        //gap, output etc. are set in the profile
+        try (GurobiEnvPool.Lease lease = GurobiEnvPool.shared().borrow(profile)) {
+            model = new GRBModel(lease.env);
 
-            //env.set(GRB.DoubleParam.TimeLimit, mode.timeLimit);// 2 hours
-            env.set(GRB.DoubleParam.MIPGap, 0.01);//0.01=1%
+            //disposed before the lease gives the env back to the pool
+            try {
+                //env.set(GRB.IntParam.MIPFocus, 1);//the focus towards finding feasible solutions
+                //or alternatively: focus towards finding feasible solutions after 1 hour
+                //env.set(GRB.DoubleParam.ImproveStartTime, 3600);
 
-            //env.set(GRB.IntParam.MIPFocus, 1);//the focus towards finding feasible solutions
-            //or alternatively: focus towards finding feasible solutions after 1 hour
-            //env.set(GRB.DoubleParam.ImproveStartTime, 3600);
+                addXVariables();
+                addFVariables();
+                model.update();
 
-            //env.set(GRB.IntParam.Threads, 1);//number of threads
+                setObjective();
 
-            //env.set(GRB.IntParam.OutputFlag, mode.output ? 1 : 0);//output
+                addEnergyDemandConstraint();
+                addEnergySupplyConstraint();
+                addChargerCountConstraint();
+                model.update();
 
-            addXVariables();
-            addFVariables();
-            model.update();
+                //model.write("D:/model.lp");
 
-            setObjective();
+                if (initialSolution != null) {
+                    applyInitialSolution(initialSolution);
+                }
 
-            addEnergyDemandConstraint();
-            addEnergySupplyConstraint();
-            addChargerCountConstraint();
-            model.update();
+                model.optimize();
 
-            //model.write("D:/model.lp");
+                //model.write("D:/gurobi_solution.sol");
 
-            if (initialSolution != null) {
-                applyInitialSolution(initialSolution);
+                return extractSolution();
+            }
+            finally {
+                model.dispose();
             }
-
-            model.optimize();
-
-            //model.write("D:/gurobi_solution.sol");
-
-            ChargerLocationSolution solution = extractSolution();
-
-            model.dispose();
-            env.dispose();
-
-            return solution;
         }
         catch (GRBException e) {
             throw new RuntimeException(e);
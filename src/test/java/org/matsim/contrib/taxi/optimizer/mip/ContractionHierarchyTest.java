@@ -0,0 +1,143 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+/**
+ * Contraction hierarchy queries compared with plain Dijkstra ({@link PathTreeNetwork}) on a random grid.
+ *
+ * @author michalm
+ */
+public class ContractionHierarchyTest {
+	private static final int GRID_SIZE = 12;
+	private static final double TOLERANCE = 1e-3;// [s] float sums in a different order
+
+	@Test
+	public void testPointToPointAndManyToMany() {
+		Network network = createRandomGrid(new Random(42));
+		PathTreeNetwork treeNetwork = new PathTreeNetwork(network);
+		float[] linkTimes = treeNetwork.calcLinkTimes(new FreeSpeedTravelTime(), 0);
+		ContractionHierarchy hierarchy = new ContractionHierarchy(treeNetwork, linkTimes);
+
+		int nodeCount = treeNetwork.getNodeCount();
+		int[] nodes = new int[nodeCount];
+		for (int u = 0; u < nodeCount; u++) {
+			nodes[u] = u;
+		}
+		float[][] manyToMany = hierarchy.calcManyToMany(nodes, nodes);
+
+		for (int s = 0; s < nodeCount; s++) {
+			float[] tree = treeNetwork.calcTree(s, linkTimes);
+			for (int t = 0; t < nodeCount; t++) {
+				assertTime(tree[t], hierarchy.calcTravelTime(s, t));
+				assertTime(tree[t], manyToMany[s][t]);
+			}
+		}
+	}
+
+	@Test
+	public void testLinkToLinkTimes() {
+		Network network = createRandomGrid(new Random(7));
+		PathTravelTimeCalculator ch = new ContractionHierarchyTravelTimeCalculator(network);
+		PathTravelTimeCalculator dijkstra = new PathTreeBasedTravelTimeCalculator(network, new FreeSpeedTravelTime());
+
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		List<Link> fromLinks = links.subList(0, 30);
+		List<Link> toLinks = links.subList(links.size() - 30, links.size());
+
+		double[][] expected = dijkstra.calcTravelTimes(fromLinks, toLinks);
+		double[][] bulk = ch.calcTravelTimes(fromLinks, toLinks);
+		double[] pairwise = ch.calcPairwiseTravelTimes(fromLinks, toLinks);
+		for (int f = 0; f < fromLinks.size(); f++) {
+			for (int t = 0; t < toLinks.size(); t++) {
+				assertTime(expected[f][t], bulk[f][t]);
+				assertTime(expected[f][t], ch.calcTravelTime(fromLinks.get(f), toLinks.get(t)));
+			}
+			assertTime(expected[f][f], pairwise[f]);
+		}
+	}
+
+	private static void assertTime(double expected, double actual) {
+		if (Double.isInfinite(expected)) {
+			assertTrue(Double.isInfinite(actual));
+		} else {
+			assertEquals(expected, actual, TOLERANCE);
+		}
+	}
+
+	// grid with random link lengths/speeds; some links one-way only (so some nodes may be unreachable)
+	private static Network createRandomGrid(Random random) {
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory factory = network.getFactory();
+
+		Node[][] nodes = new Node[GRID_SIZE][GRID_SIZE];
+		for (int x = 0; x < GRID_SIZE; x++) {
+			for (int y = 0; y < GRID_SIZE; y++) {
+				nodes[x][y] = factory.createNode(Id.createNodeId(x + "_" + y), new Coord(x * 100, y * 100));
+				network.addNode(nodes[x][y]);
+			}
+		}
+
+		for (int x = 0; x < GRID_SIZE; x++) {
+			for (int y = 0; y < GRID_SIZE; y++) {
+				if (x + 1 < GRID_SIZE) {
+					addLinks(network, random, nodes[x][y], nodes[x + 1][y]);
+				}
+				if (y + 1 < GRID_SIZE) {
+					addLinks(network, random, nodes[x][y], nodes[x][y + 1]);
+				}
+			}
+		}
+		return network;
+	}
+
+	private static void addLinks(Network network, Random random, Node a, Node b) {
+		boolean oneWay = random.nextDouble() < 0.2;
+		boolean reversed = random.nextBoolean();
+		if (!oneWay || !reversed) {
+			addLink(network, random, a, b);
+		}
+		if (!oneWay || reversed) {
+			addLink(network, random, b, a);
+		}
+	}
+
+	private static void addLink(Network network, Random random, Node from, Node to) {
+		Link link = network.getFactory().createLink(Id.createLinkId(from.getId() + "-" + to.getId()), from, to);
+		link.setLength(100 + random.nextInt(200));
+		link.setFreespeed(5 + random.nextInt(20));
+		network.addLink(link);
+	}
+}
@@ -0,0 +1,117 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2017 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.taxi.optimizer.mip;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author michalm
+ */
+public class HungarianAlgorithmTest {
+	@Test
+	public void testSquare() {
+		double[][] cost = { //
+				{ 4, 1, 3 }, //
+				{ 2, 0, 5 }, //
+				{ 3, 2, 2 } };
+		int[] rowToCol = HungarianAlgorithm.solve(cost);
+		assertArrayEquals(new int[] { 1, 0, 2 }, rowToCol);
+		assertEquals(5, totalCost(cost, rowToCol), 0);
+	}
+
+	@Test
+	public void testRectangular() {
+		double[][] cost = { //
+				{ 9, 9, 1, 9 }, //
+				{ 9, 2, 9, 9 } };
+		assertArrayEquals(new int[] { 2, 1 }, HungarianAlgorithm.solve(cost));
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(0, HungarianAlgorithm.solve(new double[0][]).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMoreRowsThanColumns() {
+		HungarianAlgorithm.solve(new double[][] { { 1 }, { 2 } });
+	}
+
+	@Test
+	public void testPenalisedCosts() {
+		// W_MAX-penalised entries (as in MIPAssignmentSolver) are avoided if possible
+		double w = MIPGurobiSolver.W_MAX;
+		double[][] cost = { //
+				{ 2 * w, 10, w + 1 }, //
+				{ 5, 2 * w, 2 * w } };
+		assertArrayEquals(new int[] { 1, 0 }, HungarianAlgorithm.solve(cost));
+	}
+
+	@Test
+	public void testAgainstBruteForce() {
+		Random random = new Random(1234);
+		for (int test = 0; test < 200; test++) {
+			int rows = 1 + random.nextInt(5);
+			int cols = rows + random.nextInt(3);
+			double[][] cost = new double[rows][cols];
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < cols; c++) {
+					cost[r][c] = random.nextInt(100);
+				}
+			}
+
+			int[] rowToCol = HungarianAlgorithm.solve(cost);
+			boolean[] used = new boolean[cols];
+			for (int col : rowToCol) {
+				assertFalse(used[col]);
+				used[col] = true;
+			}
+			assertEquals(bruteForce(cost, 0, new boolean[cols]), totalCost(cost, rowToCol), 1e-9);
+		}
+	}
+
+	private static double totalCost(double[][] cost, int[] rowToCol) {
+		double total = 0;
+		for (int r = 0; r < rowToCol.length; r++) {
+			total += cost[r][rowToCol[r]];
+		}
+		return total;
+	}
+
+	private static double bruteForce(double[][] cost, int row, boolean[] used) {
+		if (row == cost.length) {
+			return 0;
+		}
+
+		double best = Double.POSITIVE_INFINITY;
+		for (int col = 0; col < used.length; col++) {
+			if (!used[col]) {
+				used[col] = true;
+				best = Math.min(best, cost[row][col] + bruteForce(cost, row + 1, used));
+				used[col] = false;
+			}
+		}
+		return best;
+	}
+}